@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.benchmark;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.servlet.FilterChain;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.abiquo.commons.web.filter.BaseCORSFilter;
+
+/**
+ * Cost of {@link BaseCORSFilter#doFilter} for cross-origin requests.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CORSFilterBenchmark
+{
+    private static final FilterChain NOOP_CHAIN = (request, response) -> {
+    };
+
+    private BaseCORSFilter filter;
+
+    private Mocks.Request request;
+
+    private Mocks.Request preflight;
+
+    private Mocks.Response response;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        filter = new BaseCORSFilter()
+        {
+            @Override
+            protected boolean allowCredentials()
+            {
+                return true;
+            }
+
+            @Override
+            protected List<String> allowedHeaders()
+            {
+                return Arrays.asList("Accept", "Content-Type", "X-Abiquo-Token");
+            }
+
+            @Override
+            protected List<String> exposedHeaders()
+            {
+                return Arrays.asList("X-Abiquo-Token", "Location");
+            }
+        };
+        filter.init(null);
+
+        request = new Mocks.Request().header("Origin", "https://portal.example.com");
+        preflight = new Mocks.Request().method("OPTIONS")
+            .header("Origin", "https://portal.example.com")
+            .header("Access-Control-Request-Method", "PUT");
+        response = new Mocks.Response();
+    }
+
+    @Benchmark
+    public Mocks.Response crossOriginRequest() throws Exception
+    {
+        filter.doFilter(request, response.recycle(), NOOP_CHAIN);
+        return response;
+    }
+
+    @Benchmark
+    public Mocks.Response preflightRequest() throws Exception
+    {
+        filter.doFilter(preflight, response.recycle(), NOOP_CHAIN);
+        return response;
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.benchmark;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.abiquo.commons.web.servlet.AbstractCheckServlet;
+
+/**
+ * Overhead of {@link AbstractCheckServlet} around a check that always succeeds.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CheckServletBenchmark
+{
+    private AbstractCheckServlet servlet;
+
+    private Mocks.Request request;
+
+    private Mocks.Response response;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        servlet = new AbstractCheckServlet()
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean check()
+            {
+                return true;
+            }
+
+            @Override
+            protected String getDatacenterUuid()
+            {
+                return "benchmark-datacenter";
+            }
+        };
+        servlet.init(new Mocks.Config("check"));
+
+        request = new Mocks.Request().uri("/check")
+            .header("Accept", AbstractCheckServlet.DATACENTER_UUID_MEDIA_TYPE);
+        response = new Mocks.Response();
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        servlet.destroy();
+    }
+
+    @Benchmark
+    public Mocks.Response doGet() throws Exception
+    {
+        servlet.service(request, response.recycle());
+        return response;
+    }
+}
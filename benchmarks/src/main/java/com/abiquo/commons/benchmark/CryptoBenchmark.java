@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.benchmark;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.UUID;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.abiquo.commons.crypto.Crypto;
+
+/**
+ * Cost of {@link Crypto} operations, using a key file generated in a temporary directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoBenchmark
+{
+    private static final String PASSWORD = "s3cr3t-hypervisor-password";
+
+    private static final char[] PASSWORD_CHARS = PASSWORD.toCharArray();
+
+    private File keyFile;
+
+    private Crypto crypto;
+
+    private String encoded;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        keyFile = createKeyFile();
+        crypto = Crypto.forKeyFile(keyFile);
+        encoded = crypto.encode(PASSWORD);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        keyFile.delete();
+    }
+
+    /**
+     * Creates a random key file to derive the key of the benchmarked {@link Crypto}.
+     */
+    static File createKeyFile() throws Exception
+    {
+        File keyFile = File.createTempFile("abiquo-benchmark", ".store");
+        keyFile.deleteOnExit();
+        Files.write(keyFile.toPath(),
+            UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8));
+        return keyFile;
+    }
+
+    @Benchmark
+    public String encode()
+    {
+        return crypto.encode(PASSWORD);
+    }
+
+    @Benchmark
+    public char[] decode()
+    {
+        return crypto.decode(encoded);
+    }
+
+    @Benchmark
+    public boolean matches()
+    {
+        return crypto.matches(PASSWORD, encoded);
+    }
+
+    @Benchmark
+    public boolean matchesChars()
+    {
+        return crypto.matches(PASSWORD_CHARS, encoded);
+    }
+
+    @Benchmark
+    public String lookupToken()
+    {
+        return crypto.lookupToken(PASSWORD);
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.benchmark;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+import java.io.File;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.abiquo.commons.crypto.Crypto;
+
+/**
+ * Compares the queryable (AES-CBC, hex) and the non queryable (AES-GCM, Base64) formats of
+ * {@link Crypto} for values of different lengths. Run {@link #main(String[])} to print the size
+ * of the encoded values, which does not change between runs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoFormatBenchmark
+{
+    @Param({"26", "256", "4096"})
+    private int length;
+
+    private File keyFile;
+
+    private Crypto crypto;
+
+    private String value;
+
+    private String queryable;
+
+    private String nonQueryable;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        keyFile = CryptoBenchmark.createKeyFile();
+        crypto = Crypto.forKeyFile(keyFile);
+        value = value(length);
+        queryable = crypto.encode(value);
+        nonQueryable = crypto.encodeNonQueryable(value);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        keyFile.delete();
+    }
+
+    /**
+     * Prints the size of the values of each benchmarked length encoded in both formats.
+     */
+    public static void main(final String[] args) throws Exception
+    {
+        File keyFile = CryptoBenchmark.createKeyFile();
+        try
+        {
+            Crypto crypto = Crypto.forKeyFile(keyFile);
+            for (String length : CryptoFormatBenchmark.class.getDeclaredField("length")
+                .getAnnotation(Param.class).value())
+            {
+                String value = value(Integer.parseInt(length));
+                System.out.printf("Encoded size of %s chars: queryable %d, non queryable %d%n",
+                    length, crypto.encode(value).length(),
+                    crypto.encodeNonQueryable(value).length());
+            }
+        }
+        finally
+        {
+            keyFile.delete();
+        }
+    }
+
+    private static String value(final int length)
+    {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++)
+        {
+            builder.append((char) ('a' + i % 26));
+        }
+        return builder.toString();
+    }
+
+    @Benchmark
+    public String encodeQueryable()
+    {
+        return crypto.encode(value);
+    }
+
+    @Benchmark
+    public String encodeNonQueryable()
+    {
+        return crypto.encodeNonQueryable(value);
+    }
+
+    @Benchmark
+    public char[] decodeQueryable()
+    {
+        return crypto.decode(queryable);
+    }
+
+    @Benchmark
+    public char[] decodeNonQueryable()
+    {
+        return crypto.decode(nonQueryable);
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.benchmark;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.io.File;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.abiquo.commons.crypto.Crypto;
+
+/**
+ * Throughput of {@link Crypto} with one thread and with as many threads as cores. The total
+ * throughput should grow with the number of threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoScalingBenchmark
+{
+    private static final String PASSWORD = "s3cr3t-hypervisor-password";
+
+    private File keyFile;
+
+    private Crypto crypto;
+
+    private String encoded;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        keyFile = CryptoBenchmark.createKeyFile();
+        crypto = Crypto.forKeyFile(keyFile);
+        encoded = crypto.encode(PASSWORD);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        keyFile.delete();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String encodeSingleThread()
+    {
+        return crypto.encode(PASSWORD);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String encodeAllThreads()
+    {
+        return crypto.encode(PASSWORD);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public char[] decodeSingleThread()
+    {
+        return crypto.decode(encoded);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public char[] decodeAllThreads()
+    {
+        return crypto.decode(encoded);
+    }
+}
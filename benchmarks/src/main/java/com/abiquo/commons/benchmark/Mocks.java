@@ -0,0 +1,260 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.benchmark;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Minimal servlet API objects for the benchmarks.
+ * <p>
+ * The methods used by the benchmarked code are plain field accesses, so the mocks add as little
+ * time and allocation as possible to the measures. Any other method fails.
+ */
+final class Mocks
+{
+    private Mocks()
+    {
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T unsupported(final Class<T> type)
+    {
+        return (T) Proxy.newProxyInstance(Mocks.class.getClassLoader(), new Class< ? >[] {type},
+            (proxy, method, args) -> {
+                throw new UnsupportedOperationException(type.getSimpleName() + "."
+                    + method.getName() + " is not mocked");
+            });
+    }
+
+    static class Request extends HttpServletRequestWrapper
+    {
+        private final Map<String, String> headers = new HashMap<>();
+
+        private String method = "GET";
+
+        private String requestURI = "/api/cloud/virtualdatacenters/1";
+
+        Request()
+        {
+            super(unsupported(HttpServletRequest.class));
+        }
+
+        Request header(final String name, final String value)
+        {
+            headers.put(name.toLowerCase(), value);
+            return this;
+        }
+
+        Request method(final String method)
+        {
+            this.method = method;
+            return this;
+        }
+
+        Request uri(final String requestURI)
+        {
+            this.requestURI = requestURI;
+            return this;
+        }
+
+        @Override
+        public String getHeader(final String name)
+        {
+            return headers.get(name.toLowerCase());
+        }
+
+        @Override
+        public String getMethod()
+        {
+            return method;
+        }
+
+        @Override
+        public String getRequestURI()
+        {
+            return requestURI;
+        }
+
+        @Override
+        public String getContextPath()
+        {
+            return "";
+        }
+
+        @Override
+        public Object getAttribute(final String name)
+        {
+            return null;
+        }
+
+        @Override
+        public boolean isAsyncStarted()
+        {
+            return false;
+        }
+
+        @Override
+        public boolean isAsyncSupported()
+        {
+            return false;
+        }
+    }
+
+    static class Response extends HttpServletResponseWrapper
+    {
+        private static final PrintWriter NULL_WRITER = new PrintWriter(new Writer()
+        {
+            @Override
+            public void write(final char[] cbuf, final int off, final int len)
+            {
+                // Discard
+            }
+
+            @Override
+            public void flush()
+            {
+                // Nothing to flush
+            }
+
+            @Override
+            public void close()
+            {
+                // Nothing to close
+            }
+        });
+
+        private final Map<String, String> headers = new HashMap<>();
+
+        private int status = SC_OK;
+
+        Response()
+        {
+            super(unsupported(HttpServletResponse.class));
+        }
+
+        /** Clears the state written by the previous invocation. */
+        Response recycle()
+        {
+            headers.clear();
+            status = SC_OK;
+            return this;
+        }
+
+        @Override
+        public void setStatus(final int sc)
+        {
+            status = sc;
+        }
+
+        @Override
+        public int getStatus()
+        {
+            return status;
+        }
+
+        @Override
+        public void sendError(final int sc)
+        {
+            status = sc;
+        }
+
+        @Override
+        public void sendError(final int sc, final String msg)
+        {
+            status = sc;
+        }
+
+        @Override
+        public void addHeader(final String name, final String value)
+        {
+            headers.put(name, value);
+        }
+
+        @Override
+        public void setHeader(final String name, final String value)
+        {
+            headers.put(name, value);
+        }
+
+        @Override
+        public String getHeader(final String name)
+        {
+            return headers.get(name);
+        }
+
+        @Override
+        public boolean containsHeader(final String name)
+        {
+            return headers.containsKey(name);
+        }
+
+        @Override
+        public void setContentType(final String type)
+        {
+            // Ignored
+        }
+
+        @Override
+        public PrintWriter getWriter()
+        {
+            return NULL_WRITER;
+        }
+
+        @Override
+        public boolean isCommitted()
+        {
+            return false;
+        }
+    }
+
+    static class Config implements ServletConfig
+    {
+        private final String name;
+
+        Config(final String name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        public String getServletName()
+        {
+            return name;
+        }
+
+        @Override
+        public ServletContext getServletContext()
+        {
+            return unsupported(ServletContext.class);
+        }
+
+        @Override
+        public String getInitParameter(final String name)
+        {
+            return null;
+        }
+
+        @Override
+        public Enumeration<String> getInitParameterNames()
+        {
+            return Collections.emptyEnumeration();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.benchmark;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.abiquo.commons.metric.TimedMetric;
+import com.abiquo.commons.metric.Timer;
+
+/**
+ * Cost of measuring with {@link Timer} and {@link TimedMetric}, with the Nimrod log disabled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TimerBenchmark
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(TimerBenchmark.class);
+
+    private static final Map<String, String> TAGS =
+        Collections.singletonMap("hypervisor", "KVM");
+
+    private static final TimedMetric METRIC = TimedMetric.of(LOGGER, "benchmark.timed", TAGS);
+
+    @Benchmark
+    public void timerClose() throws Exception
+    {
+        Timer timer = new Timer(LOGGER, "benchmark.timer", TAGS);
+        timer.close();
+    }
+
+    @Benchmark
+    public void timedMetricStop()
+    {
+        METRIC.stop(METRIC.start());
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.concurrent;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent executions of the same operation.
+ * <p>
+ * The first caller for a given key runs the operation; callers arriving while it is still running
+ * wait for it and get the same result (or exception) instead of running it again. Once the
+ * operation finishes the next call runs it again, so results are never cached.
+ * <p>
+ * Asynchronous operations can be coalesced with {@link #executeAsync(Object, Supplier)}, that
+ * returns the future of the running operation instead of waiting for it.
+ *
+ * @param <K> The type of the keys that identify the operations.
+ * @param <V> The type of the result of the operations.
+ */
+public class SingleFlight<K, V>
+{
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder executions = new LongAdder();
+
+    private final LongAdder shared = new LongAdder();
+
+    /**
+     * Runs the operation, or waits for the one already running for the same key.
+     *
+     * @param key The key of the operation.
+     * @param operation The operation to run if there is no one running for the key.
+     * @return The result of the operation.
+     * @throws Exception The exception thrown by the operation, or {@link InterruptedException} if
+     *             the thread is interrupted while waiting for the operation run by another caller.
+     */
+    public V execute(final K key, final Callable<V> operation) throws Exception
+    {
+        requireNonNull(key, "key");
+        requireNonNull(operation, "operation");
+
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, flight);
+        if (running != null)
+        {
+            shared.increment();
+            return await(running);
+        }
+
+        executions.increment();
+        try
+        {
+            V result = operation.call();
+            flight.complete(result);
+            return result;
+        }
+        catch (Exception | Error ex)
+        {
+            flight.completeExceptionally(ex);
+            throw ex;
+        }
+        finally
+        {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    /**
+     * Starts the asynchronous operation, or returns the future of the one already running for the
+     * same key.
+     * <p>
+     * The returned future is shared by all the callers. It completes exceptionally if the operation
+     * throws an exception or returns <code>null</code>, and cancelling it cancels the operation for
+     * all of them.
+     *
+     * @param key The key of the operation.
+     * @param operation Starts the operation if there is no one running for the key.
+     * @return The future result of the operation.
+     */
+    public CompletableFuture<V> executeAsync(final K key,
+        final Supplier< ? extends CompletionStage<V>> operation)
+    {
+        requireNonNull(key, "key");
+        requireNonNull(operation, "operation");
+
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, flight);
+        if (running != null)
+        {
+            shared.increment();
+            return running;
+        }
+
+        executions.increment();
+        // Removed before the callers are notified, so they can start a new one
+        flight.whenComplete((result, error) -> inFlight.remove(key, flight));
+
+        CompletionStage<V> stage;
+        try
+        {
+            stage = requireNonNull(operation.get(), "The operation returned a null future");
+        }
+        catch (RuntimeException | Error ex)
+        {
+            flight.completeExceptionally(ex);
+            return flight;
+        }
+
+        stage.whenComplete((result, error) -> {
+            if (error == null)
+            {
+                flight.complete(result);
+            }
+            else
+            {
+                flight.completeExceptionally(error);
+            }
+        });
+        if (stage instanceof Future)
+        {
+            flight.whenComplete((result, error) -> {
+                if (flight.isCancelled())
+                {
+                    ((Future< ? >) stage).cancel(true);
+                }
+            });
+        }
+        return flight;
+    }
+
+    /** Number of calls that ran the operation. */
+    public long getExecutions()
+    {
+        return executions.sum();
+    }
+
+    /** Number of calls that got the result of an operation run by another caller. */
+    public long getSharedResults()
+    {
+        return shared.sum();
+    }
+
+    private static <V> V await(final CompletableFuture<V> running) throws Exception
+    {
+        try
+        {
+            return running.get();
+        }
+        catch (ExecutionException ex)
+        {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw (Exception) cause;
+        }
+    }
+}
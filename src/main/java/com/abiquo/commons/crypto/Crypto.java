@@ -7,27 +7,45 @@
 package com.abiquo.commons.crypto;
 
 import static com.google.common.base.Strings.isNullOrEmpty;
-import static com.google.common.base.Strings.nullToEmpty;
 import static java.lang.Boolean.getBoolean;
+import static java.lang.Long.getLong;
+import static java.lang.System.getProperty;
 import static java.util.Objects.requireNonNull;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.security.crypto.codec.Hex;
-import org.springframework.security.crypto.encrypt.Encryptors;
-import org.springframework.security.crypto.encrypt.TextEncryptor;
 
+import com.abiquo.commons.metric.TimedMetric;
 import com.google.common.base.Throwables;
+import com.google.common.cache.CacheStats;
 import com.google.common.io.CharSource;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 /**
  * Utility class for encoding/decoding passwords at Abiquo.
+ * <p>
+ * Values are encoded by default in a queryable format (the same value is always encoded the same
+ * way, so it can be looked up in the DB). Values that are never looked up can be encoded with
+ * {@link #encodeNonQueryable(String)} in an authenticated format. {@link #decode(String)}
+ * supports both.
+ * <p>
+ * Decoded values can be cached by setting the <code>abiquo.security.decodeCache.maxSize</code>
+ * property. Cached values expire after <code>abiquo.security.decodeCache.ttlSeconds</code> (5
+ * minutes by default), and {@link #invalidateDecodeCache()} must be called when the key changes.
  *
  * @author <a href="mailto:serafin.sedano@abiquo.com">Serafin Sedano</a>
  */
@@ -35,36 +53,86 @@ public class Crypto
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(Crypto.class);
 
-    private static final Crypto INSTANCE = new Crypto();
+    /** File with the password used to derive the key. */
+    private static final String KEY_FILE =
+        getProperty("abiquo.security.keyFile", "/etc/abiquo/.store");
 
+    /** Maximum number of decoded values to cache. The cache is disabled if not positive. */
+    private static final long DECODE_CACHE_SIZE =
+        getLong("abiquo.security.decodeCache.maxSize", 0);
+
+    /** Seconds a decoded value is cached. */
+    private static final long DECODE_CACHE_TTL_SECONDS =
+        getLong("abiquo.security.decodeCache.ttlSeconds", 300);
+
+    /** Length of the {@link #lookupToken(String) lookup tokens}. */
+    public static final int LOOKUP_TOKEN_LENGTH = LookupTokenGenerator.TOKEN_LENGTH;
+
+    /** Password used when encryption is disabled. */
+    static final String NO_PASSWORD = "no-password";
+
+    private static final FutureTask<Crypto> INSTANCE = new FutureTask<>(Crypto::create);
+
+    private static final AtomicBoolean PRELOADING = new AtomicBoolean();
+
+    /**
+     * Gets the instance with the configured key. The key is derived the first time it is called,
+     * unless it has been {@link #preload() preloaded}; in that case it only waits until it is done.
+     */
     public static Crypto instance()
     {
-        return INSTANCE;
+        // Does nothing if the key is already being derived in another thread
+        INSTANCE.run();
+        try
+        {
+            return Uninterruptibles.getUninterruptibly(INSTANCE);
+        }
+        catch (ExecutionException ex)
+        {
+            throw Throwables.propagate(ex.getCause());
+        }
+    }
+
+    /**
+     * Starts deriving the key of the {@link #instance()} in a background thread, to have it ready
+     * before it is used.
+     */
+    public static void preload()
+    {
+        if (!INSTANCE.isDone() && PRELOADING.compareAndSet(false, true))
+        {
+            Thread thread = new Thread(INSTANCE, "crypto-preload");
+            thread.setDaemon(true);
+            thread.start();
+        }
     }
 
-    private final TextEncryptor encryptor;
+    private static Crypto create()
+    {
+        // Time to read the key file and derive the key. Created here, so only the users of the
+        // instance start the metric sinks
+        TimedMetric keySetup =
+            TimedMetric.of(LOGGER, "crypto.key.setup", Collections.<String, String> emptyMap());
+        long start = keySetup.start();
+        Crypto crypto = getBoolean("abiquo.security.encrypt") ? forKeyFile(new File(KEY_FILE))
+            : forPassword(NO_PASSWORD);
+        keySetup.stop(start);
+        return crypto;
+    }
 
-    private Crypto()
+    /**
+     * Creates an instance with the key derived from the contents of the given file, as
+     * {@link #instance()} does with the configured key file. Useful to re-encrypt the values when
+     * the key changes.
+     */
+    public static Crypto forKeyFile(final File keyFile)
     {
         try
         {
             StringBuilder pwd = new StringBuilder();
-            if (getBoolean("abiquo.security.encrypt"))
-            {
-                CharSource source =
-                    Files.asCharSource(new File("/etc/abiquo/.store"), StandardCharsets.UTF_8);
-
-                source.copyTo(pwd);
-            }
-            else
-            {
-                pwd.append("no-password");
-            }
-
-            byte[] salt = StandardCharsets.UTF_8.encode(CharBuffer.wrap(pwd)).array();
-
-            // queryableText since we need to check for duplicated in DB
-            encryptor = Encryptors.queryableText(pwd, new String(Hex.encode(salt)));
+            CharSource source = Files.asCharSource(keyFile, StandardCharsets.UTF_8);
+            source.copyTo(pwd);
+            return new Crypto(pwd);
         }
         catch (FileNotFoundException n)
         {
@@ -77,6 +145,39 @@ public class Crypto
         }
     }
 
+    /**
+     * Creates an instance with the key derived from the given password.
+     */
+    public static Crypto forPassword(final CharSequence password)
+    {
+        return new Crypto(requireNonNull(password, "password"));
+    }
+
+    private final StripedTextEncryptor encryptor;
+
+    private final GcmEncryptor gcm;
+
+    private final LookupTokenGenerator lookupTokens;
+
+    /** Cache of decoded values, or <code>null</code> if disabled. */
+    private final DecodeCache decodeCache;
+
+    private Crypto(final CharSequence pwd)
+    {
+        byte[] salt = StandardCharsets.UTF_8.encode(CharBuffer.wrap(pwd)).array();
+
+        // queryableText since we need to check for duplicated in DB
+        // Same ciphertext as Encryptors.queryableText, without serializing all the threads
+        encryptor = new StripedTextEncryptor(pwd.toString().toCharArray(),
+            new String(Hex.encode(salt)));
+        gcm = new GcmEncryptor(encryptor.getKey(), encryptor.getConcurrency());
+        lookupTokens =
+            new LookupTokenGenerator(encryptor.getKey(), encryptor.getConcurrency());
+
+        decodeCache = DECODE_CACHE_SIZE > 0
+            ? new DecodeCache(DECODE_CACHE_SIZE, DECODE_CACHE_TTL_SECONDS) : null;
+    }
+
     /**
      * String since it is already encrypted.
      */
@@ -87,16 +188,138 @@ public class Crypto
     }
 
     /**
+     * Encodes a value that will never be looked up by its encoded form.
+     * <p>
+     * It uses AES-GCM with a random IV, so the same value is encoded differently each time and
+     * tampering is detected. It is encoded in Base64 instead of hex: the IV and the authentication
+     * tag add a fixed overhead, so it is longer than {@link #encode(String)} for values under 60
+     * bytes but up to a third shorter for longer ones. The result starts with <code>{gcm}</code>
+     * and can be decoded and matched as any other value.
+     */
+    public String encodeNonQueryable(final String password)
+    {
+        requireNonNull(password, "password");
+        byte[] plaintext = password.getBytes(StandardCharsets.UTF_8);
+        try
+        {
+            return gcm.encrypt(plaintext);
+        }
+        finally
+        {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+    }
+
+    /**
+     * Computes the lookup token of a value: a keyed fingerprint that is always the same for the
+     * same value and key.
+     * <p>
+     * Store it next to a {@link #encodeNonQueryable(String) non queryable} value, in an indexed
+     * column of {@value #LOOKUP_TOKEN_LENGTH} characters, to find duplicates with an equality
+     * query instead of comparing encoded values.
+     */
+    public String lookupToken(final String value)
+    {
+        requireNonNull(value, "value");
+        return lookupToken(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Same as {@link #lookupToken(String)}, without converting the value to a String.
+     */
+    public String lookupToken(final char[] value)
+    {
+        requireNonNull(value, "value");
+        return lookupToken(utf8(value));
+    }
+
+    private String lookupToken(final byte[] value)
+    {
+        try
+        {
+            return lookupTokens.token(value);
+        }
+        finally
+        {
+            Arrays.fill(value, (byte) 0);
+        }
+    }
+
+    /**
+     * Decodes values in any of the formats.
+     * <p>
      * If need a String: <code>new String(chars)</code>
      */
     public char[] decode(final String encoded)
     {
         requireNonNull(encoded, "encoded");
-        return encryptor.decrypt(encoded).toCharArray();
+        return decodeCache == null ? decrypt(encoded) : decodeCache.decode(encoded, this::decrypt);
+    }
+
+    /**
+     * Decodes the value and encodes it again with the key of the <code>target</code>. The
+     * plaintext is zeroed and the decoded values cache is not used.
+     */
+    String reEncode(final String encoded, final Crypto target)
+    {
+        byte[] plaintext = decryptBytes(encoded);
+        try
+        {
+            // Keep the format of the value
+            return GcmEncryptor.isEncoded(encoded) ? target.gcm.encrypt(plaintext)
+                : new String(Hex.encode(target.encryptor.encrypt(plaintext)));
+        }
+        finally
+        {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+    }
+
+    /**
+     * Discards all the cached decoded values. Must be called when the key changes.
+     */
+    public void invalidateDecodeCache()
+    {
+        if (decodeCache != null)
+        {
+            decodeCache.invalidateAll();
+        }
+    }
+
+    /**
+     * Hit and miss statistics of the decoded values cache, or <code>null</code> if it is disabled.
+     */
+    public CacheStats decodeCacheStats()
+    {
+        return decodeCache == null ? null : decodeCache.stats();
+    }
+
+    private char[] decrypt(final String encoded)
+    {
+        byte[] plaintext = decryptBytes(encoded);
+        CharBuffer chars = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(plaintext));
+        try
+        {
+            return Arrays.copyOf(chars.array(), chars.remaining());
+        }
+        finally
+        {
+            Arrays.fill(plaintext, (byte) 0);
+            Arrays.fill(chars.array(), '\0');
+        }
+    }
+
+    private byte[] decryptBytes(final String encoded)
+    {
+        return GcmEncryptor.isEncoded(encoded) ? gcm.decrypt(encoded)
+            : encryptor.decrypt(Hex.decode(encoded));
     }
 
     /**
      * Matches <code>password</code> with <code>encoded</code>. True if success, false otherwise.
+     * <p>
+     * Queryable values are not decrypted: the password is encrypted and compared with them in
+     * constant time. Non queryable values are decrypted and compared in constant time.
      */
     public boolean matches(final String password, final String encoded)
     {
@@ -104,6 +327,110 @@ public class Crypto
         {
             return false;
         }
-        return nullToEmpty(password).equals(new String(decode(nullToEmpty(encoded))));
+        return matches(password.getBytes(StandardCharsets.UTF_8), encoded);
+    }
+
+    /**
+     * Matches <code>password</code> with <code>encoded</code>. True if success, false otherwise.
+     * <p>
+     * Same as {@link #matches(String, String)} but the password never becomes a String. The
+     * intermediate buffers are zeroed; the given array is left to the caller to wipe.
+     */
+    public boolean matches(final char[] password, final String encoded)
+    {
+        if (password == null || password.length == 0 || isNullOrEmpty(encoded))
+        {
+            return false;
+        }
+
+        return matches(utf8(password), encoded);
+    }
+
+    /**
+     * Compares the plaintext with the encoded value in constant time. The plaintext is zeroed.
+     */
+    private boolean matches(final byte[] plaintext, final String encoded)
+    {
+        if (GcmEncryptor.isEncoded(encoded))
+        {
+            return matchesNonQueryable(plaintext, encoded);
+        }
+
+        byte[] ciphertext;
+        try
+        {
+            ciphertext = encryptor.encrypt(plaintext);
+        }
+        finally
+        {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+
+        // The length of the ciphertext only depends on the length of the password
+        if (encoded.length() != ciphertext.length * 2)
+        {
+            return false;
+        }
+
+        byte[] decoded = new byte[ciphertext.length];
+        int invalid = 0;
+        for (int i = 0; i < ciphertext.length; i++)
+        {
+            int high = hexValue(encoded.charAt(2 * i));
+            int low = hexValue(encoded.charAt(2 * i + 1));
+            invalid |= high | low;
+            decoded[i] = (byte) (high << 4 | low);
+        }
+        return MessageDigest.isEqual(decoded, ciphertext) & invalid >= 0;
+    }
+
+    /**
+     * Decodes a hex digit, in either case, without branching on its value.
+     *
+     * @return The value of the digit, or -1 if it is not a hex digit.
+     */
+    private static int hexValue(final char c)
+    {
+        int digit = c - '0';
+        int letter = (c | 0x20) - 'a';
+        // -1 if the value is in the range, 0 otherwise
+        int isDigit = ~(digit | 9 - digit) >> 31;
+        int isLetter = ~(letter | 5 - letter) >> 31;
+        return digit & isDigit | letter + 10 & isLetter | ~(isDigit | isLetter);
+    }
+
+    private boolean matchesNonQueryable(final byte[] plaintext, final String encoded)
+    {
+        byte[] decrypted = null;
+        try
+        {
+            decrypted = gcm.decrypt(encoded);
+            return MessageDigest.isEqual(decrypted, plaintext);
+        }
+        catch (IllegalArgumentException | IllegalStateException ex)
+        {
+            // Malformed, or encoded with another key
+            return false;
+        }
+        finally
+        {
+            Arrays.fill(plaintext, (byte) 0);
+            if (decrypted != null)
+            {
+                Arrays.fill(decrypted, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Encodes the chars in UTF-8, zeroing the intermediate buffer.
+     */
+    private static byte[] utf8(final char[] chars)
+    {
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(CharBuffer.wrap(chars));
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        Arrays.fill(buffer.array(), (byte) 0);
+        return bytes;
     }
 }
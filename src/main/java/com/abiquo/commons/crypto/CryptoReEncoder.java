@@ -0,0 +1,258 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.crypto;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Re-encodes values encoded with one key with another key, for instance when the key file changes
+ * or encryption is enabled.
+ * <p>
+ * Values are processed in batches by a pool of threads and written in the same order they are
+ * read. Only a few batches per thread are in memory at any time, so any number of values can be
+ * streamed through it. Empty values are kept as they are.
+ * <p>
+ * It can also be run from the command line to re-encode a file with a value per line:
+ *
+ * <pre>
+ * java -cp ... com.abiquo.commons.crypto.CryptoReEncoder \
+ *     &lt;current key file&gt; &lt;new key file&gt; &lt;input&gt; &lt;output&gt;
+ * </pre>
+ *
+ * Use <code>-</code> as a key file when encryption is disabled.
+ */
+public class CryptoReEncoder
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(CryptoReEncoder.class);
+
+    private static final int DEFAULT_BATCH_SIZE = 256;
+
+    /** Batches waiting to be written, per thread. */
+    private static final int PENDING_BATCHES_PER_THREAD = 2;
+
+    /**
+     * Receives the progress of a re-encoding.
+     */
+    public interface ProgressListener
+    {
+        /**
+         * Called in order after each batch is written.
+         *
+         * @param processed Number of values written so far.
+         * @param valuesPerSecond Average throughput since the start.
+         */
+        void onProgress(long processed, double valuesPerSecond);
+    }
+
+    private final Crypto source;
+
+    private final Crypto target;
+
+    private final int threads;
+
+    private final int batchSize;
+
+    public CryptoReEncoder(final Crypto source, final Crypto target)
+    {
+        this(source, target, Runtime.getRuntime().availableProcessors(), DEFAULT_BATCH_SIZE);
+    }
+
+    public CryptoReEncoder(final Crypto source, final Crypto target, final int threads,
+        final int batchSize)
+    {
+        this.source = requireNonNull(source, "source");
+        this.target = requireNonNull(target, "target");
+        if (threads < 1 || batchSize < 1)
+        {
+            throw new IllegalArgumentException("threads and batchSize must be positive");
+        }
+        this.threads = threads;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Re-encodes all the given values.
+     *
+     * @return The re-encoded values, in the same order.
+     */
+    public List<String> reEncode(final List<String> encoded)
+    {
+        List<String> result = new ArrayList<>(encoded.size());
+        reEncode(encoded.iterator(), result::add, null);
+        return result;
+    }
+
+    /**
+     * Re-encodes the values of the iterator and passes them to the output in the same order.
+     *
+     * @param listener Listener to notify the progress to. Can be <code>null</code>.
+     * @return The number of values processed.
+     * @throws IllegalArgumentException If a value cannot be decoded with the current key.
+     */
+    public long reEncode(final Iterator<String> encoded, final Consumer<String> output,
+        final ProgressListener listener)
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+            new ThreadFactoryBuilder().setNameFormat("crypto-reencoder-%d").setDaemon(true)
+                .build());
+        try
+        {
+            Deque<Future<List<String>>> pending = new ArrayDeque<>();
+            int maxPending = threads * PENDING_BATCHES_PER_THREAD;
+            long start = System.nanoTime();
+            long read = 0;
+            AtomicLong processed = new AtomicLong();
+
+            while (encoded.hasNext())
+            {
+                List<String> batch = new ArrayList<>(batchSize);
+                while (batch.size() < batchSize && encoded.hasNext())
+                {
+                    batch.add(encoded.next());
+                }
+
+                long offset = read;
+                read += batch.size();
+                pending.add(executor.submit(() -> reEncode(batch, offset)));
+
+                if (pending.size() >= maxPending)
+                {
+                    write(pending.poll(), output, listener, processed, start);
+                }
+            }
+            while (!pending.isEmpty())
+            {
+                write(pending.poll(), output, listener, processed, start);
+            }
+
+            LOGGER.info("Re-encoded {} values in {} ms", processed.get(),
+                (System.nanoTime() - start) / 1000000);
+            return processed.get();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<String> reEncode(final List<String> batch, final long offset)
+    {
+        List<String> result = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++)
+        {
+            String value = batch.get(i);
+            try
+            {
+                result.add(value.isEmpty() ? value : source.reEncode(value, target));
+            }
+            catch (RuntimeException ex)
+            {
+                throw new IllegalArgumentException(
+                    "Could not decode value " + (offset + i + 1) + " with the current key", ex);
+            }
+        }
+        return result;
+    }
+
+    private static void write(final Future<List<String>> batch, final Consumer<String> output,
+        final ProgressListener listener, final AtomicLong processed, final long start)
+    {
+        List<String> values;
+        try
+        {
+            values = batch.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw Throwables.propagate(ex);
+        }
+        catch (ExecutionException ex)
+        {
+            throw Throwables.propagate(ex.getCause());
+        }
+
+        values.forEach(output);
+        long count = processed.addAndGet(values.size());
+        if (listener != null)
+        {
+            double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+            listener.onProgress(count, count / seconds);
+        }
+    }
+
+    public static void main(final String[] args) throws IOException
+    {
+        if (args.length != 4)
+        {
+            System.err.println("Usage: " + CryptoReEncoder.class.getName()
+                + " <current key file> <new key file> <input> <output>");
+            System.err.println("Use - as a key file when encryption is disabled");
+            System.exit(1);
+        }
+
+        CryptoReEncoder reEncoder = new CryptoReEncoder(crypto(args[0]), crypto(args[1]));
+        Path input = Paths.get(args[2]);
+        Path output = Paths.get(args[3]);
+        try (BufferedReader in = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+            BufferedWriter out = Files.newBufferedWriter(output, StandardCharsets.UTF_8))
+        {
+            AtomicLong lastReport = new AtomicLong(System.nanoTime());
+            reEncoder.reEncode(in.lines().iterator(), value -> {
+                try
+                {
+                    out.write(value);
+                    out.newLine();
+                }
+                catch (IOException ex)
+                {
+                    throw Throwables.propagate(ex);
+                }
+            }, (processed, valuesPerSecond) -> {
+                long now = System.nanoTime();
+                if (now - lastReport.get() >= 1000000000L)
+                {
+                    lastReport.set(now);
+                    System.err.printf("%d values re-encoded (%.0f/s)%n", processed,
+                        valuesPerSecond);
+                }
+            });
+        }
+    }
+
+    private static Crypto crypto(final String keyFile)
+    {
+        return "-".equals(keyFile) ? Crypto.forPassword(Crypto.NO_PASSWORD)
+            : Crypto.forKeyFile(new File(keyFile));
+    }
+}
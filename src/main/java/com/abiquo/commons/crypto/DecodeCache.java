@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.crypto;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Function;
+
+import com.abiquo.commons.metric.Counter;
+import com.abiquo.commons.metric.MetricKey;
+import com.abiquo.commons.metric.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+/**
+ * Bounded cache of decoded values, to not decrypt the same credentials over and over.
+ * <p>
+ * Entries are keyed by a SHA-256 digest of the encoded value, expire after a fixed time since they
+ * were decoded and the plaintext is kept in a <code>char[]</code> that is zeroed when the entry is
+ * evicted. Callers always get a copy of the plaintext, that they can wipe when they are done.
+ */
+class DecodeCache
+{
+    private static final Counter HITS =
+        MetricRegistry.instance().counter(MetricKey.of("crypto.decode.cache", "result", "hit"));
+
+    private static final Counter MISSES =
+        MetricRegistry.instance().counter(MetricKey.of("crypto.decode.cache", "result", "miss"));
+
+    /**
+     * Plaintext of a cached entry. Once wiped it can no longer be read, so a reader racing with
+     * the eviction never gets a zeroed value.
+     */
+    private static final class Plaintext
+    {
+        private final char[] chars;
+
+        private boolean wiped;
+
+        Plaintext(final char[] chars)
+        {
+            this.chars = chars.clone();
+        }
+
+        synchronized char[] copy()
+        {
+            return wiped ? null : chars.clone();
+        }
+
+        synchronized void wipe()
+        {
+            Arrays.fill(chars, '\0');
+            wiped = true;
+        }
+    }
+
+    private final Cache<HashCode, Plaintext> cache;
+
+    DecodeCache(final long maxSize, final long ttlSeconds)
+    {
+        cache = CacheBuilder.newBuilder() //
+            .maximumSize(maxSize) //
+            .expireAfterWrite(ttlSeconds, SECONDS) //
+            .removalListener((RemovalListener<HashCode, Plaintext>) n -> n.getValue().wipe()) //
+            .recordStats() //
+            .build();
+    }
+
+    /**
+     * Gets the cached plaintext of the encoded value, or decodes and caches it.
+     *
+     * @return A copy of the plaintext, owned by the caller.
+     */
+    char[] decode(final String encoded, final Function<String, char[]> decoder)
+    {
+        HashCode key = Hashing.sha256().hashString(encoded, StandardCharsets.UTF_8);
+
+        Plaintext cached = cache.getIfPresent(key);
+        char[] plaintext = cached == null ? null : cached.copy();
+        if (plaintext != null)
+        {
+            HITS.increment();
+            return plaintext;
+        }
+
+        MISSES.increment();
+        plaintext = decoder.apply(encoded);
+        cache.put(key, new Plaintext(plaintext));
+        return plaintext;
+    }
+
+    /**
+     * Discards and wipes all the cached values.
+     */
+    void invalidateAll()
+    {
+        cache.invalidateAll();
+    }
+
+    CacheStats stats()
+    {
+        return cache.stats();
+    }
+}
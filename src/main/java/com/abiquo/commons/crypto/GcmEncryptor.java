@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Authenticated, non deterministic encryption with AES-GCM.
+ * <p>
+ * Values are encoded as <code>{gcm}</code> followed by the Base64 (without padding) of a random
+ * 12 byte IV, the ciphertext and the 16 byte authentication tag. The key is derived from the key of
+ * the queryable format with HMAC-SHA256, so the same key is never used by both modes. Like the
+ * {@link StripedTextEncryptor}, each thread uses the cipher and the random generator of its stripe.
+ */
+class GcmEncryptor
+{
+    static final String PREFIX = "{gcm}";
+
+    private static final String CIPHER_ALGORITHM = "AES/GCM/NoPadding";
+
+    private static final String KEY_LABEL = "abiquo-crypto-gcm-v1";
+
+    private static final int IV_LENGTH = 12;
+
+    private static final int TAG_LENGTH = 128;
+
+    private static final class Stripe
+    {
+        final Cipher cipher;
+
+        final SecureRandom random = new SecureRandom();
+
+        final byte[] iv = new byte[IV_LENGTH];
+
+        Stripe() throws GeneralSecurityException
+        {
+            cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+        }
+    }
+
+    private final Stripe[] stripes;
+
+    private final int mask;
+
+    private final SecretKey key;
+
+    GcmEncryptor(final SecretKey baseKey, final int concurrency)
+    {
+        stripes = new Stripe[concurrency];
+        mask = concurrency - 1;
+
+        try
+        {
+            key = KeyDerivation.derive(baseKey, KEY_LABEL, "AES");
+            for (int i = 0; i < concurrency; i++)
+            {
+                stripes[i] = new Stripe();
+            }
+        }
+        catch (GeneralSecurityException ex)
+        {
+            throw new IllegalStateException("Could not initialize the AES-GCM ciphers", ex);
+        }
+    }
+
+    static boolean isEncoded(final String value)
+    {
+        return value.startsWith(PREFIX);
+    }
+
+    String encrypt(final byte[] plaintext)
+    {
+        Stripe stripe = stripes[StripedTextEncryptor.stripeIndex(mask)];
+        byte[] result = new byte[IV_LENGTH + plaintext.length + TAG_LENGTH / 8];
+        synchronized (stripe)
+        {
+            try
+            {
+                stripe.random.nextBytes(stripe.iv);
+                System.arraycopy(stripe.iv, 0, result, 0, IV_LENGTH);
+                stripe.cipher.init(Cipher.ENCRYPT_MODE, key,
+                    new GCMParameterSpec(TAG_LENGTH, stripe.iv));
+                stripe.cipher.doFinal(plaintext, 0, plaintext.length, result, IV_LENGTH);
+            }
+            catch (GeneralSecurityException ex)
+            {
+                throw new IllegalStateException("Unable to encrypt", ex);
+            }
+        }
+        return PREFIX + Base64.getEncoder().withoutPadding().encodeToString(result);
+    }
+
+    /**
+     * Decrypts a value in this format.
+     *
+     * @throws IllegalArgumentException If the value is not in this format.
+     * @throws IllegalStateException If the value was not encrypted with this key or has been
+     *             tampered with.
+     */
+    byte[] decrypt(final String encoded)
+    {
+        if (!isEncoded(encoded))
+        {
+            throw new IllegalArgumentException("Not an AES-GCM encoded value");
+        }
+        byte[] bytes = Base64.getDecoder().decode(encoded.substring(PREFIX.length()));
+        if (bytes.length < IV_LENGTH + TAG_LENGTH / 8)
+        {
+            throw new IllegalArgumentException("Truncated AES-GCM encoded value");
+        }
+
+        Stripe stripe = stripes[StripedTextEncryptor.stripeIndex(mask)];
+        synchronized (stripe)
+        {
+            try
+            {
+                stripe.cipher.init(Cipher.DECRYPT_MODE, key,
+                    new GCMParameterSpec(TAG_LENGTH, bytes, 0, IV_LENGTH));
+                return stripe.cipher.doFinal(bytes, IV_LENGTH, bytes.length - IV_LENGTH);
+            }
+            catch (GeneralSecurityException ex)
+            {
+                throw new IllegalStateException("Unable to decrypt", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.crypto;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Derives independent keys for each use from the key of the queryable format.
+ */
+final class KeyDerivation
+{
+    static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private KeyDerivation()
+    {
+    }
+
+    /**
+     * Derives a 256 bit key as the HMAC-SHA256 of the label with the base key.
+     */
+    static SecretKey derive(final SecretKey baseKey, final String label, final String algorithm)
+        throws GeneralSecurityException
+    {
+        Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+        mac.init(new SecretKeySpec(baseKey.getEncoded(), HMAC_ALGORITHM));
+        return new SecretKeySpec(mac.doFinal(label.getBytes(StandardCharsets.UTF_8)), algorithm);
+    }
+}
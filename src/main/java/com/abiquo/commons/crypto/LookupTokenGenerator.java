@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.crypto;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+/**
+ * Generates keyed fingerprints of values, to find duplicates without decrypting them.
+ * <p>
+ * A token is the HMAC-SHA256 of the value, truncated to 128 bits and encoded in URL-safe Base64
+ * without padding, so it is always 22 characters long. The HMAC key is derived from the key of the
+ * queryable format, so tokens cannot be computed without the key file. Like the
+ * {@link StripedTextEncryptor}, each thread uses the {@link Mac} of its stripe.
+ */
+class LookupTokenGenerator
+{
+    /** Length of the tokens, in characters. */
+    static final int TOKEN_LENGTH = 22;
+
+    private static final String KEY_LABEL = "abiquo-crypto-lookup-v1";
+
+    private static final int TOKEN_BYTES = 16;
+
+    private final Mac[] stripes;
+
+    private final int mask;
+
+    LookupTokenGenerator(final SecretKey baseKey, final int concurrency)
+    {
+        stripes = new Mac[concurrency];
+        mask = concurrency - 1;
+
+        try
+        {
+            SecretKey key =
+                KeyDerivation.derive(baseKey, KEY_LABEL, KeyDerivation.HMAC_ALGORITHM);
+            for (int i = 0; i < concurrency; i++)
+            {
+                stripes[i] = Mac.getInstance(KeyDerivation.HMAC_ALGORITHM);
+                stripes[i].init(key);
+            }
+        }
+        catch (GeneralSecurityException ex)
+        {
+            throw new IllegalStateException("Could not initialize the lookup token HMAC", ex);
+        }
+    }
+
+    String token(final byte[] value)
+    {
+        Mac mac = stripes[StripedTextEncryptor.stripeIndex(mask)];
+        byte[] digest;
+        synchronized (mac)
+        {
+            digest = mac.doFinal(value);
+        }
+        return Base64.getUrlEncoder().withoutPadding()
+            .encodeToString(Arrays.copyOf(digest, TOKEN_BYTES));
+    }
+}
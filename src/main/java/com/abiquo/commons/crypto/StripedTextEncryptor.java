@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.crypto;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.springframework.security.crypto.codec.Hex;
+import org.springframework.security.crypto.codec.Utf8;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+
+/**
+ * Queryable text encryptor that can be used concurrently without contention.
+ * <p>
+ * It produces the same output as <code>Encryptors.queryableText</code> (256 bit AES in CBC mode
+ * with a null IV, and a key derived with PBKDF2 from the password and the hex encoded salt), but
+ * instead of a single synchronized cipher it keeps a set of ciphers and each thread uses the one
+ * of its stripe. The ciphers are initialized once, so the key schedule is not computed on each
+ * operation either.
+ */
+class StripedTextEncryptor implements TextEncryptor
+{
+    private static final String KEY_ALGORITHM = "PBKDF2WithHmacSHA1";
+
+    private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
+
+    private static final int KEY_ITERATIONS = 1024;
+
+    private static final int KEY_LENGTH = 256;
+
+    private static final int IV_LENGTH = 16;
+
+    /** Ciphers of a stripe. A cipher returns to its initial state after each operation. */
+    private static final class Stripe
+    {
+        final Cipher encryptor;
+
+        final Cipher decryptor;
+
+        Stripe(final SecretKey key) throws GeneralSecurityException
+        {
+            IvParameterSpec iv = new IvParameterSpec(new byte[IV_LENGTH]);
+            encryptor = Cipher.getInstance(CIPHER_ALGORITHM);
+            encryptor.init(Cipher.ENCRYPT_MODE, key, iv);
+            decryptor = Cipher.getInstance(CIPHER_ALGORITHM);
+            decryptor.init(Cipher.DECRYPT_MODE, key, iv);
+        }
+
+        synchronized byte[] encrypt(final byte[] bytes) throws GeneralSecurityException
+        {
+            return encryptor.doFinal(bytes);
+        }
+
+        synchronized byte[] decrypt(final byte[] bytes) throws GeneralSecurityException
+        {
+            return decryptor.doFinal(bytes);
+        }
+    }
+
+    private final Stripe[] stripes;
+
+    private final int mask;
+
+    private final SecretKey key;
+
+    StripedTextEncryptor(final char[] password, final String salt)
+    {
+        this(password, salt, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    StripedTextEncryptor(final char[] password, final String salt, final int concurrency)
+    {
+        int size = Integer.highestOneBit(Math.max(1, concurrency - 1)) << 1;
+        stripes = new Stripe[size];
+        mask = size - 1;
+
+        try
+        {
+            PBEKeySpec spec =
+                new PBEKeySpec(password, Hex.decode(salt), KEY_ITERATIONS, KEY_LENGTH);
+            SecretKey derived = SecretKeyFactory.getInstance(KEY_ALGORITHM).generateSecret(spec);
+            spec.clearPassword();
+
+            key = new SecretKeySpec(derived.getEncoded(), "AES");
+            for (int i = 0; i < size; i++)
+            {
+                stripes[i] = new Stripe(key);
+            }
+        }
+        catch (GeneralSecurityException ex)
+        {
+            throw new IllegalStateException("Could not initialize the AES ciphers", ex);
+        }
+    }
+
+    @Override
+    public String encrypt(final String text)
+    {
+        return new String(Hex.encode(encrypt(Utf8.encode(text))));
+    }
+
+    /**
+     * Encrypts the given bytes. The result is not hex encoded.
+     */
+    byte[] encrypt(final byte[] bytes)
+    {
+        try
+        {
+            return stripe().encrypt(bytes);
+        }
+        catch (GeneralSecurityException ex)
+        {
+            throw new IllegalStateException("Unable to encrypt", ex);
+        }
+    }
+
+    @Override
+    public String decrypt(final String encryptedText)
+    {
+        return Utf8.decode(decrypt(Hex.decode(encryptedText)));
+    }
+
+    /**
+     * Decrypts the given bytes, that are not hex encoded.
+     */
+    byte[] decrypt(final byte[] bytes)
+    {
+        try
+        {
+            return stripe().decrypt(bytes);
+        }
+        catch (GeneralSecurityException ex)
+        {
+            throw new IllegalStateException("Unable to decrypt", ex);
+        }
+    }
+
+    /**
+     * Gets the derived AES key.
+     */
+    SecretKey getKey()
+    {
+        return key;
+    }
+
+    /**
+     * Gets the number of stripes.
+     */
+    int getConcurrency()
+    {
+        return stripes.length;
+    }
+
+    private Stripe stripe()
+    {
+        return stripes[stripeIndex(mask)];
+    }
+
+    /**
+     * Gets the stripe of the current thread, spreading consecutive thread ids.
+     */
+    static int stripeIndex(final int mask)
+    {
+        long id = Thread.currentThread().getId();
+        return (int) (id ^ id >>> 32) * 0x9E3779B9 >>> 16 & mask;
+    }
+}
@@ -0,0 +1,327 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.metric;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records samples in a background thread, so callers never wait for the delegate sinks.
+ * <p>
+ * Samples are published to a preallocated ring buffer that many threads can write to without
+ * locking, and a single consumer thread delivers them in batches to the delegate sinks, flushing
+ * them after each batch. When the buffer is full the sample is dropped instead of blocking the
+ * caller; {@link #getDropped()} reports how many. The consumer thread sleeps while there is
+ * nothing to deliver, and is woken up by the next published sample.
+ * <p>
+ * Other sinks can also be {@link #wrap(MetricSink) wrapped} to deliver their samples through the
+ * same buffer and thread. {@link #logEvents()} is the shared instance used to write the log
+ * events of {@link TimedMetric#of(Logger, String, java.util.Map)} out of the request threads; it
+ * must be {@link #closeLogEvents() closed} when the application stops, so its thread does not
+ * outlive it.
+ */
+public class AsyncMetricSink implements MetricSink, Closeable
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncMetricSink.class);
+
+    /** Time to wait for the pending samples to be delivered when closing. */
+    private static final long CLOSE_TIMEOUT_MS = 5000;
+
+    private static final int LOG_EVENTS_CAPACITY = 8192;
+
+    private static final int LOG_EVENTS_BATCH_SIZE = 256;
+
+    /** Shared instance, created on first use. Guarded by the class. */
+    private static AsyncMetricSink logEvents;
+
+    private final MetricSink delegate;
+
+    private final int mask;
+
+    private final int batchSize;
+
+    /** Sink of each sample, or <code>null</code> for the delegates. */
+    private final MetricSink[] targets;
+
+    private final MetricKey[] keys;
+
+    private final long[] timestamps;
+
+    private final long[] values;
+
+    /** Sequence of the sample stored in each slot, once it can be read. */
+    private final AtomicLongArray published;
+
+    /** Next sequence to claim by the producers. */
+    private final AtomicLong head = new AtomicLong();
+
+    /** Next sequence to deliver by the consumer. Slots before it can be reused. */
+    private final AtomicLong tail = new AtomicLong();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final Thread consumer;
+
+    private volatile boolean running = true;
+
+    /** Whether the consumer is waiting for samples, so producers must wake it up. */
+    private volatile boolean idle;
+
+    /**
+     * @param capacity The number of samples the buffer can hold. Rounded up to a power of two.
+     * @param batchSize The maximum number of samples delivered before flushing the delegates.
+     * @param delegates The sinks that will record the samples.
+     */
+    public AsyncMetricSink(final int capacity, final int batchSize, final MetricSink... delegates)
+    {
+        if (capacity <= 0 || batchSize <= 0)
+        {
+            throw new IllegalArgumentException("Capacity and batch size must be positive");
+        }
+
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+
+        this.delegate = new CompositeMetricSink(delegates);
+        this.mask = size - 1;
+        this.batchSize = batchSize;
+        this.targets = new MetricSink[size];
+        this.keys = new MetricKey[size];
+        this.timestamps = new long[size];
+        this.values = new long[size];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+        {
+            published.set(i, -1);
+        }
+
+        consumer = new Thread(this::consume, "metric-sink");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Gets the shared sink used to write metric log events in the background. Its thread is
+     * started the first time it is used.
+     */
+    public static synchronized AsyncMetricSink logEvents()
+    {
+        if (logEvents == null)
+        {
+            logEvents = new AsyncMetricSink(LOG_EVENTS_CAPACITY, LOG_EVENTS_BATCH_SIZE);
+        }
+        return logEvents;
+    }
+
+    /**
+     * Closes the shared sink of {@link #logEvents()}, if it was started. The log events recorded
+     * afterwards by the existing metrics are dropped.
+     */
+    public static synchronized void closeLogEvents()
+    {
+        if (logEvents != null)
+        {
+            logEvents.close();
+            logEvents = null;
+        }
+    }
+
+    /**
+     * Gets a sink that records its samples in the given one from the thread of this sink.
+     */
+    public MetricSink wrap(final MetricSink sink)
+    {
+        return new MetricSink()
+        {
+            @Override
+            public boolean isEnabled()
+            {
+                return running && sink.isEnabled();
+            }
+
+            @Override
+            public void record(final MetricKey key, final long timestampMillis,
+                final long elapsedNanos)
+            {
+                publish(sink, key, timestampMillis, elapsedNanos);
+            }
+        };
+    }
+
+    @Override
+    public boolean isEnabled()
+    {
+        return running && delegate.isEnabled();
+    }
+
+    @Override
+    public void record(final MetricKey key, final long timestampMillis, final long elapsedNanos)
+    {
+        publish(null, key, timestampMillis, elapsedNanos);
+    }
+
+    private void publish(final MetricSink target, final MetricKey key,
+        final long timestampMillis, final long elapsedNanos)
+    {
+        long sequence;
+        do
+        {
+            sequence = head.get();
+            if (!running || sequence - tail.get() > mask)
+            {
+                dropped.increment();
+                return;
+            }
+        }
+        while (!head.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) sequence & mask;
+        targets[slot] = target;
+        keys[slot] = key;
+        timestamps[slot] = timestampMillis;
+        values[slot] = elapsedNanos;
+        // Full fence, so either the consumer sees the sample or this sees it idle
+        published.set(slot, sequence);
+        if (idle)
+        {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /** Number of samples dropped because the buffer was full. */
+    public long getDropped()
+    {
+        return dropped.sum();
+    }
+
+    /** Number of samples waiting to be delivered. */
+    public long getPending()
+    {
+        return head.get() - tail.get();
+    }
+
+    /**
+     * Stops accepting samples and waits for the pending ones to be delivered.
+     */
+    @Override
+    public void close()
+    {
+        running = false;
+        LockSupport.unpark(consumer);
+        try
+        {
+            consumer.join(CLOSE_TIMEOUT_MS);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void consume()
+    {
+        while (true)
+        {
+            if (drain() == 0)
+            {
+                if (!running && tail.get() == head.get())
+                {
+                    return;
+                }
+                idle = true;
+                // Check again, a sample may have been published before it was idle
+                if (running && !hasPublished())
+                {
+                    LockSupport.park(this);
+                }
+                idle = false;
+            }
+        }
+    }
+
+    private boolean hasPublished()
+    {
+        long next = tail.get();
+        return published.get((int) next & mask) == next;
+    }
+
+    /**
+     * Delivers the next batch of published samples.
+     * 
+     * @return The number of delivered samples.
+     */
+    private int drain()
+    {
+        long next = tail.get();
+        int delivered = 0;
+        MetricSink wrapped = null;
+        while (delivered < batchSize)
+        {
+            int slot = (int) next & mask;
+            if (published.get(slot) != next)
+            {
+                break;
+            }
+
+            MetricSink target = targets[slot] == null ? delegate : targets[slot];
+            MetricKey key = keys[slot];
+            long timestamp = timestamps[slot];
+            long value = values[slot];
+            targets[slot] = null;
+            keys[slot] = null;
+            tail.lazySet(++next);
+            delivered++;
+
+            if (target != delegate && target != wrapped)
+            {
+                // Samples of the same sink usually come together
+                flush(wrapped);
+                wrapped = target;
+            }
+
+            try
+            {
+                if (target.isEnabled())
+                {
+                    target.record(key, timestamp, value);
+                }
+            }
+            catch (RuntimeException ex)
+            {
+                LOGGER.warn("Could not record metric sample", ex);
+            }
+        }
+
+        if (delivered > 0)
+        {
+            flush(wrapped);
+            flush(delegate);
+        }
+        return delivered;
+    }
+
+    private static void flush(final MetricSink sink)
+    {
+        if (sink == null)
+        {
+            return;
+        }
+        try
+        {
+            sink.flush();
+        }
+        catch (RuntimeException ex)
+        {
+            LOGGER.warn("Could not flush metric samples", ex);
+        }
+    }
+}
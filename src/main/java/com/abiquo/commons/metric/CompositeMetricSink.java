@@ -0,0 +1,54 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.metric;
+
+/**
+ * Records each sample in all the enabled sinks.
+ */
+public class CompositeMetricSink implements MetricSink
+{
+    private final MetricSink[] sinks;
+
+    public CompositeMetricSink(final MetricSink... sinks)
+    {
+        this.sinks = sinks.clone();
+    }
+
+    @Override
+    public boolean isEnabled()
+    {
+        for (MetricSink sink : sinks)
+        {
+            if (sink.isEnabled())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void record(final MetricKey key, final long timestampMillis, final long elapsedNanos)
+    {
+        for (MetricSink sink : sinks)
+        {
+            if (sink.isEnabled())
+            {
+                sink.record(key, timestampMillis, elapsedNanos);
+            }
+        }
+    }
+
+    @Override
+    public void flush()
+    {
+        for (MetricSink sink : sinks)
+        {
+            sink.flush();
+        }
+    }
+}
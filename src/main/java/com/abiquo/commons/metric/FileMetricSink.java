@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.metric;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends each sample to a file as a Nimrod gauge line, with the elapsed milliseconds.
+ * <p>
+ * Lines are buffered until {@link #flush()}, so it is meant to be used behind an
+ * {@link AsyncMetricSink}.
+ */
+public class FileMetricSink implements MetricSink, Closeable
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileMetricSink.class);
+
+    private final Path file;
+
+    private final Writer writer;
+
+    private boolean failed;
+
+    public FileMetricSink(final Path file) throws IOException
+    {
+        this.file = file;
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    @Override
+    public boolean isEnabled()
+    {
+        return true;
+    }
+
+    @Override
+    public synchronized void record(final MetricKey key, final long timestampMillis,
+        final long elapsedNanos)
+    {
+        try
+        {
+            writer.write("[nimrod][");
+            writer.write(Long.toString(timestampMillis));
+            writer.write("][gauge][");
+            writer.write(key.getName());
+            writer.write("][");
+            writer.write(Long.toString(NANOSECONDS.toMillis(elapsedNanos)));
+            writer.write("][");
+            writer.write(key.getRenderedTags());
+            writer.write("]\n");
+        }
+        catch (IOException ex)
+        {
+            warn(ex);
+        }
+    }
+
+    @Override
+    public synchronized void flush()
+    {
+        try
+        {
+            writer.flush();
+        }
+        catch (IOException ex)
+        {
+            warn(ex);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        writer.close();
+    }
+
+    /** Logs only the first failure, to not flood the log if the disk is full. */
+    private void warn(final IOException ex)
+    {
+        if (!failed)
+        {
+            failed = true;
+            LOGGER.warn("Could not write metrics to " + file, ex);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.metric;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Value that goes up and down, such as the number of requests in progress. Striped, so concurrent
+ * updates do not contend.
+ */
+public class Gauge
+{
+    private final LongAdder value = new LongAdder();
+
+    public void increment()
+    {
+        value.increment();
+    }
+
+    public void decrement()
+    {
+        value.decrement();
+    }
+
+    public void add(final long delta)
+    {
+        value.add(delta);
+    }
+
+    public long get()
+    {
+        return value.sum();
+    }
+}
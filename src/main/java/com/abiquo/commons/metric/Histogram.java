@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.metric;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free, fixed-memory histogram of non-negative values, such as latencies in nanoseconds.
+ * <p>
+ * Values are counted in log-linear buckets, in the same way as HdrHistogram: each power of two is
+ * split in {@value #SUB_BUCKETS} linear sub-buckets, so the value reported for a percentile is
+ * within 3% of the recorded one. Values below {@value #SUB_BUCKETS} are counted exactly and values
+ * above 2^{@value #MAX_EXPONENT} (about 18 minutes in nanoseconds) are counted in the last bucket.
+ * The maximum is always tracked exactly.
+ */
+public class Histogram
+{
+    private static final int SUB_BUCKET_BITS = 5;
+
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    static final int MAX_EXPONENT = 40;
+
+    static final long MAX_TRACKABLE = (1L << MAX_EXPONENT) - 1;
+
+    static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    private final LongAdder sum = new LongAdder();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     */
+    public void record(final long value)
+    {
+        long v = value < 0 ? 0 : value;
+
+        buckets.incrementAndGet(bucketIndex(v));
+        sum.add(v);
+
+        long current = max.get();
+        while (v > current && !max.compareAndSet(current, v))
+        {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Takes a consistent-enough copy of the histogram. Values recorded concurrently with the
+     * snapshot may or may not be included.
+     */
+    public HistogramSnapshot snapshot()
+    {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        return new HistogramSnapshot(counts, total, sum.sum(), max.get());
+    }
+
+    /**
+     * Gets several percentiles straight from the live buckets, without copying them. Values
+     * recorded concurrently may or may not be included.
+     * 
+     * @param percentiles The percentiles, between 0 and 100, in ascending order.
+     * @param values Receives the value of each percentile.
+     * @return The number of values the percentiles were computed from.
+     */
+    public long valuesAtPercentiles(final double[] percentiles, final long[] values)
+    {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            count += buckets.get(i);
+        }
+
+        long maxValue = max.get();
+        int p = 0;
+        if (count > 0)
+        {
+            long seen = 0;
+            for (int i = 0; i < BUCKETS && p < percentiles.length; i++)
+            {
+                seen += buckets.get(i);
+                while (p < percentiles.length && seen >= rank(percentiles[p], count))
+                {
+                    values[p++] = Math.min(bucketValue(i), maxValue);
+                }
+            }
+        }
+        while (p < percentiles.length)
+        {
+            values[p++] = count == 0 ? 0 : maxValue;
+        }
+        return count;
+    }
+
+    /** Sum of the recorded values. */
+    public long getSum()
+    {
+        return sum.sum();
+    }
+
+    /**
+     * The position, starting at 1, of the value of the given percentile among the sorted values.
+     */
+    static long rank(final double percentile, final long count)
+    {
+        return Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    }
+
+    static int bucketIndex(final long value)
+    {
+        long v = Math.min(value, MAX_TRACKABLE);
+        if (v < SUB_BUCKETS)
+        {
+            return (int) v;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(v);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (v >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * The value that represents the given bucket: the middle point of its range.
+     */
+    static long bucketValue(final int index)
+    {
+        if (index < SUB_BUCKETS)
+        {
+            return index;
+        }
+
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        long lowest = (long) (SUB_BUCKETS + subBucket) << shift;
+        return lowest + ((1L << shift) >> 1);
+    }
+}
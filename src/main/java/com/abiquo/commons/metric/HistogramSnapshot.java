@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.metric;
+
+/**
+ * Point in time copy of a {@link Histogram}.
+ */
+public class HistogramSnapshot
+{
+    private final long[] counts;
+
+    private final long count;
+
+    private final long sum;
+
+    private final long max;
+
+    HistogramSnapshot(final long[] counts, final long count, final long sum, final long max)
+    {
+        this.counts = counts;
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    /** Number of recorded values. */
+    public long getCount()
+    {
+        return count;
+    }
+
+    /** Sum of the recorded values. */
+    public long getSum()
+    {
+        return sum;
+    }
+
+    public long getMax()
+    {
+        return max;
+    }
+
+    public double getMean()
+    {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    public long getP50()
+    {
+        return getValueAtPercentile(50);
+    }
+
+    public long getP99()
+    {
+        return getValueAtPercentile(99);
+    }
+
+    public long getP999()
+    {
+        return getValueAtPercentile(99.9);
+    }
+
+    /**
+     * Gets the value below which the given percentage of the recorded values fall.
+     * 
+     * @param percentile The percentile, between 0 and 100.
+     */
+    public long getValueAtPercentile(final double percentile)
+    {
+        if (count == 0)
+        {
+            return 0;
+        }
+
+        long rank = Histogram.rank(percentile, count);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+            {
+                return Math.min(Histogram.bucketValue(i), max);
+            }
+        }
+        return max;
+    }
+}
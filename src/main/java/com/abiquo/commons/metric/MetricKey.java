@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.metric;
+
+import static com.google.common.base.Strings.nullToEmpty;
+import static java.util.Objects.requireNonNull;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.google.common.base.Joiner;
+
+/**
+ * Identifies a metric series: a metric name plus a set of tags.
+ * <p>
+ * Keys are immutable and render their tags once, so they can be created up front and reused to
+ * record samples.
+ */
+public final class MetricKey
+{
+    private final String name;
+
+    private final SortedMap<String, String> tags;
+
+    /** Tags rendered as Nimrod expects them: <code>key:value,key:value</code>. */
+    private final String renderedTags;
+
+    private final int hash;
+
+    private MetricKey(final String name, final SortedMap<String, String> tags)
+    {
+        this.name = requireNonNull(name, "name");
+        this.tags = Collections.unmodifiableSortedMap(tags);
+        this.renderedTags = Joiner.on(",").withKeyValueSeparator(":").join(tags);
+        this.hash = 31 * name.hashCode() + tags.hashCode();
+    }
+
+    public static MetricKey of(final String name)
+    {
+        return new MetricKey(name, new TreeMap<>());
+    }
+
+    public static MetricKey of(final String name, final Map<String, String> tags)
+    {
+        SortedMap<String, String> sorted = new TreeMap<>();
+        if (tags != null)
+        {
+            tags.forEach((k, v) -> sorted.put(k, nullToEmpty(v)));
+        }
+        return new MetricKey(name, sorted);
+    }
+
+    /**
+     * Creates a key with the given tags as consecutive key and value pairs.
+     */
+    public static MetricKey of(final String name, final String... tags)
+    {
+        if (tags.length % 2 != 0)
+        {
+            throw new IllegalArgumentException("Tags must be key and value pairs");
+        }
+
+        SortedMap<String, String> sorted = new TreeMap<>();
+        for (int i = 0; i < tags.length; i += 2)
+        {
+            sorted.put(tags[i], nullToEmpty(tags[i + 1]));
+        }
+        return new MetricKey(name, sorted);
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public SortedMap<String, String> getTags()
+    {
+        return tags;
+    }
+
+    public String getRenderedTags()
+    {
+        return renderedTags;
+    }
+
+    @Override
+    public boolean equals(final Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (!(obj instanceof MetricKey))
+        {
+            return false;
+        }
+        MetricKey other = (MetricKey) obj;
+        return hash == other.hash && name.equals(other.name) && tags.equals(other.tags);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hash;
+    }
+
+    @Override
+    public String toString()
+    {
+        return tags.isEmpty() ? name : name + "{" + renderedTags + "}";
+    }
+}
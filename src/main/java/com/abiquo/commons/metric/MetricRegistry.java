@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.metric;
+
+import static java.lang.Integer.getInteger;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory store of the metrics of the application.
+ * <p>
+ * Each {@link MetricKey} has its own {@link Histogram}, {@link Counter} or {@link Gauge}, created
+ * the first time it is used. As a {@link MetricSink}, it records the samples measured by
+ * {@link Timer} in the histogram of their key.
+ * <p>
+ * Each histogram takes about 9 KB, so their number is limited by the
+ * <code>abiquo.metrics.maxHistograms</code> property (1000 by default). Once the limit is reached,
+ * the samples of new keys are discarded; this usually means some tag has unbounded values, such as
+ * ids.
+ */
+public class MetricRegistry implements MetricSink
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricRegistry.class);
+
+    private static final int DEFAULT_MAX_HISTOGRAMS =
+        getInteger("abiquo.metrics.maxHistograms", 1000);
+
+    private static final MetricRegistry INSTANCE = new MetricRegistry();
+
+    public static MetricRegistry instance()
+    {
+        return INSTANCE;
+    }
+
+    private final ConcurrentMap<MetricKey, Histogram> histograms = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<MetricKey, Counter> counters = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<MetricKey, Gauge> gauges = new ConcurrentHashMap<>();
+
+    private final int maxHistograms;
+
+    /** Records the samples of the keys over the limit. It is not registered. */
+    private final Histogram discarded = new Histogram();
+
+    private final AtomicBoolean limitReported = new AtomicBoolean();
+
+    public MetricRegistry()
+    {
+        this(DEFAULT_MAX_HISTOGRAMS);
+    }
+
+    /**
+     * @param maxHistograms Maximum number of histograms. It may be exceeded by a few when they are
+     *            created concurrently.
+     */
+    public MetricRegistry(final int maxHistograms)
+    {
+        this.maxHistograms = maxHistograms;
+    }
+
+    /**
+     * Gets the histogram of the given key, creating it if there is room for it.
+     * 
+     * @return The histogram of the key, or a histogram that is not registered if the limit of
+     *         histograms has been reached.
+     */
+    public Histogram histogram(final MetricKey key)
+    {
+        Histogram histogram = histograms.get(key);
+        if (histogram != null)
+        {
+            return histogram;
+        }
+        if (histograms.size() >= maxHistograms)
+        {
+            if (limitReported.compareAndSet(false, true))
+            {
+                LOGGER.warn("Reached the limit of {} metric histograms; discarding the samples of "
+                    + "{} and any other new series", maxHistograms, key);
+            }
+            return discarded;
+        }
+        return histograms.computeIfAbsent(key, k -> new Histogram());
+    }
+
+    public Counter counter(final MetricKey key)
+    {
+        Counter counter = counters.get(key);
+        return counter != null ? counter : counters.computeIfAbsent(key, k -> new Counter());
+    }
+
+    public Gauge gauge(final MetricKey key)
+    {
+        Gauge gauge = gauges.get(key);
+        return gauge != null ? gauge : gauges.computeIfAbsent(key, k -> new Gauge());
+    }
+
+    /**
+     * Gets a snapshot of the histogram of the given key.
+     * 
+     * @return The snapshot, or <code>null</code> if nothing has been recorded for the key.
+     */
+    public HistogramSnapshot snapshot(final MetricKey key)
+    {
+        Histogram histogram = histograms.get(key);
+        return histogram == null ? null : histogram.snapshot();
+    }
+
+    public Map<MetricKey, Histogram> getHistograms()
+    {
+        return Collections.unmodifiableMap(histograms);
+    }
+
+    public Map<MetricKey, Counter> getCounters()
+    {
+        return Collections.unmodifiableMap(counters);
+    }
+
+    public Map<MetricKey, Gauge> getGauges()
+    {
+        return Collections.unmodifiableMap(gauges);
+    }
+
+    @Override
+    public boolean isEnabled()
+    {
+        return true;
+    }
+
+    @Override
+    public void record(final MetricKey key, final long timestampMillis, final long elapsedNanos)
+    {
+        histogram(key).record(elapsedNanos);
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.metric;
+
+/**
+ * Destination of the samples measured by a {@link Timer}.
+ */
+public interface MetricSink
+{
+    /**
+     * Return a boolean indicating if the sink will record samples. Callers use it to skip
+     * measuring and formatting when nothing is going to be recorded.
+     */
+    boolean isEnabled();
+
+    /**
+     * Records a sample.
+     * 
+     * @param key The metric series.
+     * @param timestampMillis The wall clock time when the measure ended.
+     * @param elapsedNanos The measured time, in nanoseconds.
+     */
+    void record(MetricKey key, long timestampMillis, long elapsedNanos);
+
+    /**
+     * Writes any buffered sample. {@link AsyncMetricSink} calls it after each batch.
+     */
+    default void flush()
+    {
+        // Nothing buffered by default
+    }
+}
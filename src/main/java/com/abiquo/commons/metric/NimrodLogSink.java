@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.metric;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import org.slf4j.Logger;
+
+/**
+ * Reports *the elapsed milliseconds* of each sample as a Nimrod gauge log event, at debug level.
+ * <p>
+ * <a href="https//:github.com/sbtourist/nimrod>Nimrod</a>
+ */
+public class NimrodLogSink implements MetricSink
+{
+    private static final String TEMPLATE_WITH_TAGS = "[nimrod][{}][gauge][{}][{}][{}]";
+
+    private final Logger log;
+
+    public NimrodLogSink(final Logger log)
+    {
+        this.log = log;
+    }
+
+    @Override
+    public boolean isEnabled()
+    {
+        return log.isDebugEnabled();
+    }
+
+    @Override
+    public void record(final MetricKey key, final long timestampMillis, final long elapsedNanos)
+    {
+        log.debug(TEMPLATE_WITH_TAGS, new Object[] {timestampMillis, key.getName(),
+        NANOSECONDS.toMillis(elapsedNanos), key.getRenderedTags()});
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.metric;
+
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * A metric series resolved once, to time hot paths without allocating per sample.
+ * <p>
+ * Create it once (for example in a static field) and time each execution with primitive longs:
+ * 
+ * <pre>
+ * private static final TimedMetric SAVE = TimedMetric.of(LOGGER, "vm.save", tags);
+ * 
+ * long start = SAVE.start();
+ * ...
+ * SAVE.stop(start);
+ * </pre>
+ * 
+ * Nothing is formatted nor allocated when none of the sinks is enabled.
+ */
+public final class TimedMetric
+{
+    /** Metrics created by {@link #of(Logger, String, Map)}, by logger, name and tags. */
+    private static final Cache<List<Object>, TimedMetric> METRICS =
+        CacheBuilder.newBuilder().maximumSize(1000).build();
+
+    private final MetricKey key;
+
+    private final MetricSink sink;
+
+    public TimedMetric(final MetricKey key, final MetricSink sink)
+    {
+        this.key = key;
+        this.sink = sink;
+    }
+
+    /**
+     * Gets a metric recorded in the {@link MetricRegistry} and reported as a Nimrod log event in
+     * the given logger. The log events are written in the background by
+     * {@link AsyncMetricSink#logEvents()}. The metrics are cached, so calling it again with the
+     * same arguments does not create a new one.
+     */
+    public static TimedMetric of(final Logger log, final String metricName,
+        final Map<String, String> tags)
+    {
+        Map<String, String> lookupTags = tags == null ? Collections.emptyMap() : tags;
+        TimedMetric metric =
+            METRICS.getIfPresent(Arrays.asList(log.getName(), metricName, lookupTags));
+        if (metric == null)
+        {
+            // Copy the tags, the caller may change them later
+            Map<String, String> keyTags = new HashMap<>(lookupTags);
+            metric = new TimedMetric(MetricKey.of(metricName, keyTags),
+                new CompositeMetricSink(MetricRegistry.instance(),
+                    AsyncMetricSink.logEvents().wrap(new NimrodLogSink(log))));
+            METRICS.put(Arrays.asList(log.getName(), metricName, keyTags), metric);
+        }
+        return metric;
+    }
+
+    public MetricKey getKey()
+    {
+        return key;
+    }
+
+    /**
+     * Gets the start time of a measure, to be passed to {@link #stop(long)}.
+     */
+    public long start()
+    {
+        return nanoTime();
+    }
+
+    /**
+     * Records the time elapsed since the given start time.
+     */
+    public void stop(final long start)
+    {
+        long elapsed = nanoTime() - start;
+        if (sink.isEnabled())
+        {
+            sink.record(key, currentTimeMillis(), elapsed);
+        }
+    }
+}
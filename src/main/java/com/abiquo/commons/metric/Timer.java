@@ -6,49 +6,45 @@
  */
 package com.abiquo.commons.metric;
 
-import static java.lang.System.currentTimeMillis;
-
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.Map;
 
 import org.slf4j.Logger;
 
-import com.google.common.base.Joiner;
-
 /**
- * Measure the time to take an action and report *the elapsed milliseconds* as a Nimrod gauge log
- * event
+ * Measure the time to take an action and record it in a {@link MetricSink}.
  * <p>
- * <a href="https//:github.com/sbtourist/nimrod>Nimrod</a>
+ * By default the elapsed time is recorded in the {@link MetricRegistry} and reported *in
+ * milliseconds* as a Nimrod gauge log event (see {@link NimrodLogSink}), written in the background
+ * by {@link AsyncMetricSink#logEvents()}. Hot paths should use a
+ * {@link TimedMetric} directly, to avoid resolving the metric and allocating on each measure.
  */
 public class Timer implements Closeable
 {
-    private static final String TEMPLATE_WITH_TAGS = "[nimrod][{}][gauge][{}][{}][{}]";
-
-    private final Logger log;
-
-    private final String metricName;
-
-    private final Map<String, String> tags;
+    private final TimedMetric metric;
 
     private final long start;
 
     public Timer(final Logger log, final String metricName, final Map<String, String> tags)
     {
-        this.log = log;
-        this.metricName = metricName;
-        this.tags = tags;
-        this.start = currentTimeMillis();
+        this(TimedMetric.of(log, metricName, tags));
+    }
+
+    public Timer(final MetricKey key, final MetricSink sink)
+    {
+        this(new TimedMetric(key, sink));
+    }
+
+    public Timer(final TimedMetric metric)
+    {
+        this.metric = metric;
+        this.start = metric.start();
     }
 
     @Override
     public void close() throws IOException
     {
-        long end = currentTimeMillis();
-        long value = end - start;
-
-        log.debug(TEMPLATE_WITH_TAGS, new Object[] {end, metricName, value,
-        Joiner.on(",").withKeyValueSeparator(":").join(tags)});
+        metric.stop(start);
     }
 }
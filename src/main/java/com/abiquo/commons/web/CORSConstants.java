@@ -22,4 +22,8 @@ public interface CORSConstants
     public static final String ACCESS_EXPOSE_CORS_HEADER = "Access-Control-Expose-Headers";
 
     public static final String ACCESS_METHODS_CORS_HEADER = "Access-Control-Allow-Methods";
+
+    public static final String ACCESS_MAX_AGE_CORS_HEADER = "Access-Control-Max-Age";
+
+    public static final String REQUEST_METHOD_CORS_HEADER = "Access-Control-Request-Method";
 }
@@ -9,7 +9,10 @@ package com.abiquo.commons.web.filter;
 import static com.abiquo.commons.web.CORSConstants.ACCESS_CREDENTIALS_CORS_HEADER;
 import static com.abiquo.commons.web.CORSConstants.ACCESS_EXPOSE_CORS_HEADER;
 import static com.abiquo.commons.web.CORSConstants.ACCESS_HEADERS_CORS_HEADER;
+import static com.abiquo.commons.web.CORSConstants.ACCESS_MAX_AGE_CORS_HEADER;
+import static com.abiquo.commons.web.CORSConstants.ACCESS_METHODS_CORS_HEADER;
 import static com.abiquo.commons.web.CORSConstants.ACCESS_ORIGIN_CORS_HEADER;
+import static com.abiquo.commons.web.CORSConstants.REQUEST_METHOD_CORS_HEADER;
 
 import java.io.IOException;
 import java.util.Collections;
@@ -33,6 +36,24 @@ import com.google.common.net.HttpHeaders;
 
 /**
  * Adds the required headers to the response to allow Cross-Origin Resource Sharing.
+ * <p>
+ * Preflight requests (<code>OPTIONS</code> requests with the
+ * <code>Access-Control-Request-Method</code> header) are answered by the filter itself, without
+ * continuing the chain, and include an <code>Access-Control-Max-Age</code> header so browsers cache
+ * them. Subclasses that need the application to handle them can override
+ * {@link #handlePreflight()}.
+ * <p>
+ * The headers are added right before the response is committed (see {@link CORSResponseWrapper}),
+ * so they are present also in streamed responses, without buffering them.
+ * <p>
+ * Only the origins allowed by {@link #allowedOrigins()} get the CORS headers (see
+ * {@link CORSOriginPolicy} for the supported patterns); by default all origins are allowed. When
+ * not all origins are allowed, responses carry a <code>Vary: Origin</code> header, so caches do not
+ * serve the response of an origin to another one.
+ * <p>
+ * The header values and the origin policy are computed once when the filter is initialized.
+ * Subclasses whose allowed origins or headers change at runtime must call
+ * {@link #refreshCORSConfiguration()} after the change.
  * 
  * @author Ignasi Barrera
  */
@@ -40,6 +61,45 @@ public abstract class BaseCORSFilter implements Filter
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(BaseCORSFilter.class);
 
+    private static final List<String> DEFAULT_ALLOWED_METHODS =
+        ImmutableList.of("GET", "POST", "PUT", "DELETE", "PATCH", "HEAD", "OPTIONS");
+
+    /** Browsers cap it anyway (Chrome to 2 hours, Firefox to 24 hours). */
+    private static final long DEFAULT_PREFLIGHT_MAX_AGE_SECONDS = 1800;
+
+    /** Precomputed values of the CORS headers. */
+    private static final class CORSHeaders
+    {
+        final String allowCredentials;
+
+        final String allowedHeaders;
+
+        final String exposedHeaders;
+
+        final String allowedMethods;
+
+        final String maxAge;
+
+        /** Whether the response depends on the origin. */
+        final boolean varyOrigin;
+
+        CORSHeaders(final String allowCredentials, final String allowedHeaders,
+            final String exposedHeaders, final String allowedMethods, final String maxAge,
+            final boolean varyOrigin)
+        {
+            this.allowCredentials = allowCredentials;
+            this.allowedHeaders = allowedHeaders;
+            this.exposedHeaders = exposedHeaders;
+            this.allowedMethods = allowedMethods;
+            this.maxAge = maxAge;
+            this.varyOrigin = varyOrigin;
+        }
+    }
+
+    private volatile CORSHeaders headers;
+
+    private volatile CORSOriginPolicy originPolicy;
+
     /**
      * Return a boolean indicating if credentials are allowed in CORS requests.
      */
@@ -58,48 +118,128 @@ public abstract class BaseCORSFilter implements Filter
         return Collections.emptyList();
     }
 
+    /**
+     * Return a list of allowed origin patterns in CORS requests. All origins are allowed by
+     * default.
+     * 
+     * @see CORSOriginPolicy
+     */
+    protected List<String> allowedOrigins()
+    {
+        return Collections.singletonList(CORSOriginPolicy.ANY_ORIGIN);
+    }
+
+    /**
+     * Return a list of allowed methods in CORS requests, returned in preflight responses.
+     */
+    protected List<String> allowedMethods()
+    {
+        return DEFAULT_ALLOWED_METHODS;
+    }
+
+    /**
+     * Return the number of seconds browsers can cache the preflight responses.
+     */
+    protected long preflightMaxAge()
+    {
+        return DEFAULT_PREFLIGHT_MAX_AGE_SECONDS;
+    }
+
+    /**
+     * Return a boolean indicating if preflight requests are answered by the filter. If false, they
+     * continue the chain as any other request.
+     */
+    protected boolean handlePreflight()
+    {
+        return true;
+    }
+
     @Override
     public void init(final FilterConfig filterConfig) throws ServletException
     {
         LOGGER.info("Loading CORS filter");
+        refreshCORSConfiguration();
+    }
+
+    /**
+     * Recomputes the values of the CORS headers from {@link #allowCredentials()},
+     * {@link #allowedHeaders()} and {@link #exposedHeaders()}, and reloads the origin policy from
+     * {@link #allowedOrigins()}.
+     */
+    protected void refreshCORSConfiguration()
+    {
+        CORSOriginPolicy policy = originPolicy;
+        if (policy == null)
+        {
+            policy = new CORSOriginPolicy(allowedOrigins());
+            originPolicy = policy;
+        }
+        else
+        {
+            policy.reload(allowedOrigins());
+        }
+
+        boolean allowCredentials = allowCredentials();
+
+        List<String> allowedHeaders = allowedHeaders();
+        if (allowCredentials)
+        {
+            allowedHeaders = ImmutableList.<String> builder()
+                .addAll(allowedHeaders == null ? Collections.<String> emptyList() : allowedHeaders)
+                .add(HttpHeaders.AUTHORIZATION).build();
+        }
+
+        headers = new CORSHeaders(String.valueOf(allowCredentials), join(allowedHeaders),
+            join(exposedHeaders()), join(allowedMethods()), String.valueOf(preflightMaxAge()),
+            !policy.allowsAnyOrigin());
     }
 
     @Override
     public void doFilter(final ServletRequest request, final ServletResponse response,
         final FilterChain chain) throws IOException, ServletException
     {
-        chain.doFilter(request, response);
-
         HttpServletRequest req = (HttpServletRequest) request;
         HttpServletResponse res = (HttpServletResponse) response;
 
-        String origin = req.getHeader("Origin");
+        String origin = req.getHeader(HttpHeaders.ORIGIN);
+        CORSHeaders cors = headers();
+        boolean hasOrigin = origin != null && !origin.isEmpty();
+        boolean allowed = hasOrigin && originPolicy.isAllowed(origin);
 
-        // Only set the CORS headers if the 'Origin' header is in the request
-        if (origin != null && !origin.isEmpty())
+        if (hasOrigin && isPreflight(req) && handlePreflight())
         {
-            res.addHeader(ACCESS_ORIGIN_CORS_HEADER, origin);
-            res.addHeader(ACCESS_CREDENTIALS_CORS_HEADER, String.valueOf(allowCredentials()));
-
-            List<String> allowedHeaders = allowedHeaders();
-            if (allowCredentials())
-            {
-                allowedHeaders = ImmutableList.<String> builder().addAll(allowedHeaders)
-                    .add(HttpHeaders.AUTHORIZATION).build();
-            }
-            if (allowedHeaders != null && !allowedHeaders.isEmpty())
+            // Answer the preflight here; the application has nothing to do with it
+            if (!allowed)
             {
-                res.addHeader(ACCESS_HEADERS_CORS_HEADER,
-                    allowedHeaders.stream().collect(Collectors.joining(", ")));
+                varyOrigin(res, cors);
+                res.setStatus(HttpServletResponse.SC_FORBIDDEN);
+                return;
             }
 
-            List<String> exposedHeaders = exposedHeaders();
-            if (exposedHeaders != null && !exposedHeaders.isEmpty())
+            addCORSHeaders(res, origin, cors);
+            if (cors.allowedMethods != null)
             {
-                res.addHeader(ACCESS_EXPOSE_CORS_HEADER,
-                    exposedHeaders.stream().collect(Collectors.joining(", ")));
+                res.setHeader(ACCESS_METHODS_CORS_HEADER, cors.allowedMethods);
             }
+            res.setHeader(ACCESS_MAX_AGE_CORS_HEADER, cors.maxAge);
+            res.setStatus(HttpServletResponse.SC_OK);
+            return;
         }
+
+        // Only set the CORS headers if the 'Origin' header is in the request and it is allowed
+        if (!allowed)
+        {
+            varyOrigin(res, cors);
+            chain.doFilter(request, response);
+            return;
+        }
+
+        CORSResponseWrapper wrapper =
+            new CORSResponseWrapper(res, r -> addCORSHeaders(r, origin, cors));
+        chain.doFilter(request, wrapper);
+
+        // In case the application did not write a body
+        wrapper.inject();
     }
 
     @Override
@@ -108,4 +248,56 @@ public abstract class BaseCORSFilter implements Filter
         LOGGER.info("Destroying CORS filter");
     }
 
+    private CORSHeaders headers()
+    {
+        CORSHeaders cors = headers;
+        if (cors == null)
+        {
+            // Subclasses overriding init() might not have computed them
+            refreshCORSConfiguration();
+            cors = headers;
+        }
+        return cors;
+    }
+
+    private static void addCORSHeaders(final HttpServletResponse res, final String origin,
+        final CORSHeaders cors)
+    {
+        varyOrigin(res, cors);
+        res.addHeader(ACCESS_ORIGIN_CORS_HEADER, origin);
+        res.addHeader(ACCESS_CREDENTIALS_CORS_HEADER, cors.allowCredentials);
+
+        if (cors.allowedHeaders != null)
+        {
+            res.addHeader(ACCESS_HEADERS_CORS_HEADER, cors.allowedHeaders);
+        }
+        if (cors.exposedHeaders != null)
+        {
+            res.addHeader(ACCESS_EXPOSE_CORS_HEADER, cors.exposedHeaders);
+        }
+    }
+
+    private static void varyOrigin(final HttpServletResponse res, final CORSHeaders cors)
+    {
+        if (cors.varyOrigin)
+        {
+            res.addHeader(HttpHeaders.VARY, HttpHeaders.ORIGIN);
+        }
+    }
+
+    private static boolean isPreflight(final HttpServletRequest request)
+    {
+        return "OPTIONS".equals(request.getMethod())
+            && request.getHeader(REQUEST_METHOD_CORS_HEADER) != null;
+    }
+
+    /**
+     * Joins the header names in a header value, or returns <code>null</code> if there are none.
+     */
+    private static String join(final List<String> headers)
+    {
+        return headers == null || headers.isEmpty() ? null
+            : headers.stream().collect(Collectors.joining(", "));
+    }
+
 }
@@ -0,0 +1,346 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.web.filter;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Decides which origins are allowed to make Cross-Origin requests.
+ * <p>
+ * The policy is built from a list of patterns:
+ * <ul>
+ * <li><code>*</code>: any origin.</li>
+ * <li><code>https://portal.example.com</code>: an exact origin. The port is optional and
+ * defaults to the one of the scheme.</li>
+ * <li><code>https://*.example.com</code>: any subdomain of <code>example.com</code> (but not
+ * <code>example.com</code> itself).</li>
+ * <li><code>https://example.com:8000-8100</code>: a range of ports. It can be combined with a
+ * wildcard subdomain.</li>
+ * </ul>
+ * Ports must be between 1 and 65535, and ranges must not be empty. Invalid patterns are rejected
+ * when the policy is loaded.
+ * Patterns are compiled into a hash set with the exact origins and a trie indexed by the host
+ * labels in reverse order (<code>com</code>, <code>example</code>, ...) for wildcards and port
+ * ranges, so matching does not depend on the number of patterns. Decisions are also memoized in a
+ * bounded cache. The policy can be {@link #reload(Collection) reloaded} at any time.
+ */
+public class CORSOriginPolicy
+{
+    public static final String ANY_ORIGIN = "*";
+
+    private static final int DEFAULT_CACHE_SIZE = 1024;
+
+    private static final int MAX_PORT = 65535;
+
+    private final int cacheSize;
+
+    private volatile Compiled compiled;
+
+    public CORSOriginPolicy(final Collection<String> patterns)
+    {
+        this(patterns, DEFAULT_CACHE_SIZE);
+    }
+
+    public CORSOriginPolicy(final Collection<String> patterns, final int cacheSize)
+    {
+        this.cacheSize = cacheSize;
+        reload(patterns);
+    }
+
+    /**
+     * Replaces the allowed origins. Decisions taken with the previous patterns are discarded.
+     *
+     * @throws IllegalArgumentException If any of the patterns is not valid.
+     */
+    public void reload(final Collection<String> patterns)
+    {
+        compiled = new Compiled(requireNonNull(patterns, "patterns"), cacheSize);
+    }
+
+    /**
+     * Checks if all the origins are allowed.
+     */
+    public boolean allowsAnyOrigin()
+    {
+        return compiled.any;
+    }
+
+    /**
+     * Checks if the given origin is allowed.
+     *
+     * @param origin The value of the <code>Origin</code> header.
+     */
+    public boolean isAllowed(final String origin)
+    {
+        // Keep a reference so the decision is cached with the patterns used to take it
+        Compiled current = compiled;
+        if (current.any)
+        {
+            return true;
+        }
+
+        Boolean allowed = current.decisions.getIfPresent(origin);
+        if (allowed == null)
+        {
+            allowed = current.matches(origin);
+            current.decisions.put(origin, allowed);
+        }
+        return allowed;
+    }
+
+    /**
+     * Scheme, host and port of an origin or a pattern.
+     */
+    private static final class Origin
+    {
+        final String scheme;
+
+        final String host;
+
+        final int minPort;
+
+        final int maxPort;
+
+        private Origin(final String scheme, final String host, final int minPort,
+            final int maxPort)
+        {
+            this.scheme = scheme;
+            this.host = host;
+            this.minPort = minPort;
+            this.maxPort = maxPort;
+        }
+
+        /**
+         * Parses an origin or pattern.
+         *
+         * @return The parsed origin, or <code>null</code> if it is not valid.
+         */
+        static Origin parse(final String value)
+        {
+            int schemeEnd = value.indexOf("://");
+            if (schemeEnd <= 0)
+            {
+                return null;
+            }
+
+            String scheme = value.substring(0, schemeEnd).toLowerCase(Locale.ROOT);
+            String authority = value.substring(schemeEnd + 3);
+            if (authority.endsWith("/"))
+            {
+                authority = authority.substring(0, authority.length() - 1);
+            }
+
+            int portStart = authority.lastIndexOf(':');
+            String host = portStart < 0 ? authority : authority.substring(0, portStart);
+            if (host.isEmpty() || host.indexOf('/') >= 0)
+            {
+                return null;
+            }
+
+            if (portStart < 0)
+            {
+                int port = defaultPort(scheme);
+                return new Origin(scheme, host.toLowerCase(Locale.ROOT), port, port);
+            }
+
+            String ports = authority.substring(portStart + 1);
+            int range = ports.indexOf('-');
+            int minPort = parsePort(range < 0 ? ports : ports.substring(0, range));
+            int maxPort = range < 0 ? minPort : parsePort(ports.substring(range + 1));
+            if (minPort < 0 || maxPort < minPort)
+            {
+                return null;
+            }
+            return new Origin(scheme, host.toLowerCase(Locale.ROOT), minPort, maxPort);
+        }
+
+        /**
+         * Parses a port number.
+         *
+         * @return The port, or -1 if it is not a number between 1 and 65535.
+         */
+        private static int parsePort(final String value)
+        {
+            if (value.isEmpty() || value.length() > 5)
+            {
+                return -1;
+            }
+            int port = 0;
+            for (int i = 0; i < value.length(); i++)
+            {
+                char c = value.charAt(i);
+                if (c < '0' || c > '9')
+                {
+                    return -1;
+                }
+                port = port * 10 + c - '0';
+            }
+            return port >= 1 && port <= MAX_PORT ? port : -1;
+        }
+
+        private static int defaultPort(final String scheme)
+        {
+            return "https".equals(scheme) ? 443 : "http".equals(scheme) ? 80 : -1;
+        }
+
+        String canonical()
+        {
+            return scheme + "://" + host + ":" + minPort;
+        }
+    }
+
+    /**
+     * Pattern attached to a node of the trie.
+     */
+    private static final class Rule
+    {
+        final String scheme;
+
+        final int minPort;
+
+        final int maxPort;
+
+        /** If true it matches subdomains of the node; otherwise the node host itself. */
+        final boolean subdomains;
+
+        Rule(final Origin pattern, final boolean subdomains)
+        {
+            this.scheme = pattern.scheme;
+            this.minPort = pattern.minPort;
+            this.maxPort = pattern.maxPort;
+            this.subdomains = subdomains;
+        }
+
+        boolean matches(final Origin origin)
+        {
+            return scheme.equals(origin.scheme) && origin.minPort >= minPort
+                && origin.minPort <= maxPort;
+        }
+    }
+
+    private static final class Node
+    {
+        final Map<String, Node> children = new HashMap<>();
+
+        final List<Rule> rules = new ArrayList<>(1);
+    }
+
+    /**
+     * Immutable compiled form of a set of patterns, with its own decision cache.
+     */
+    private static final class Compiled
+    {
+        final boolean any;
+
+        /** Exact origins, in canonical form, and the raw patterns. */
+        final Set<String> exact = new HashSet<>();
+
+        final Node root = new Node();
+
+        final Cache<String, Boolean> decisions;
+
+        Compiled(final Collection<String> patterns, final int cacheSize)
+        {
+            boolean anyOrigin = false;
+            for (String raw : patterns)
+            {
+                String pattern = raw.trim();
+                if (ANY_ORIGIN.equals(pattern))
+                {
+                    anyOrigin = true;
+                    continue;
+                }
+
+                Origin parsed = Origin.parse(pattern);
+                if (parsed == null)
+                {
+                    throw new IllegalArgumentException("Invalid origin pattern: " + raw);
+                }
+
+                boolean wildcard = parsed.host.startsWith("*.");
+                if (!wildcard && parsed.minPort == parsed.maxPort)
+                {
+                    exact.add(parsed.canonical());
+                    exact.add(pattern);
+                    continue;
+                }
+
+                String host = wildcard ? parsed.host.substring(2) : parsed.host;
+                if (host.indexOf('*') >= 0)
+                {
+                    throw new IllegalArgumentException(
+                        "Wildcards are only allowed as the first label: " + raw);
+                }
+
+                Node node = root;
+                String[] labels = host.split("\\.");
+                for (int i = labels.length - 1; i >= 0; i--)
+                {
+                    node = node.children.computeIfAbsent(labels[i], label -> new Node());
+                }
+                node.rules.add(new Rule(parsed, wildcard));
+            }
+
+            any = anyOrigin;
+            decisions = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+        }
+
+        boolean matches(final String value)
+        {
+            if (exact.contains(value))
+            {
+                return true;
+            }
+
+            Origin origin = Origin.parse(value);
+            if (origin == null)
+            {
+                return false;
+            }
+            if (exact.contains(origin.canonical()))
+            {
+                return true;
+            }
+
+            // Walk the host labels from the top level domain
+            Node node = root;
+            int end = origin.host.length();
+            while (end > 0)
+            {
+                int start = origin.host.lastIndexOf('.', end - 1) + 1;
+                node = node.children.get(origin.host.substring(start, end));
+                if (node == null)
+                {
+                    return false;
+                }
+
+                boolean last = start == 0;
+                for (Rule rule : node.rules)
+                {
+                    if (rule.subdomains != last && rule.matches(origin))
+                    {
+                        return true;
+                    }
+                }
+                end = start - 1;
+            }
+            return false;
+        }
+    }
+}
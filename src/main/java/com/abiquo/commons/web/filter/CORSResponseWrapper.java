@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.web.filter;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.function.Consumer;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Adds the CORS headers right before the response can be committed.
+ * <p>
+ * Headers are injected when the application gets the body stream or writer, flushes the buffer or
+ * sends an error or redirect, which are the only ways to commit a response. The stream itself is
+ * not wrapped, so large or streamed bodies are written straight to the container without being
+ * buffered.
+ */
+class CORSResponseWrapper extends HttpServletResponseWrapper
+{
+    private final Consumer<HttpServletResponse> injector;
+
+    private boolean injected;
+
+    CORSResponseWrapper(final HttpServletResponse response,
+        final Consumer<HttpServletResponse> injector)
+    {
+        super(response);
+        this.injector = injector;
+    }
+
+    /**
+     * Adds the headers, unless they have already been added or the response is committed.
+     */
+    void inject()
+    {
+        if (!injected)
+        {
+            injected = true;
+            if (!isCommitted())
+            {
+                injector.accept((HttpServletResponse) getResponse());
+            }
+        }
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException
+    {
+        inject();
+        return super.getOutputStream();
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException
+    {
+        inject();
+        return super.getWriter();
+    }
+
+    @Override
+    public void flushBuffer() throws IOException
+    {
+        inject();
+        super.flushBuffer();
+    }
+
+    @Override
+    public void sendError(final int sc) throws IOException
+    {
+        inject();
+        super.sendError(sc);
+    }
+
+    @Override
+    public void sendError(final int sc, final String msg) throws IOException
+    {
+        inject();
+        super.sendError(sc, msg);
+    }
+
+    @Override
+    public void sendRedirect(final String location) throws IOException
+    {
+        inject();
+        super.sendRedirect(location);
+    }
+
+    @Override
+    public void reset()
+    {
+        super.reset();
+        // Reset clears the headers; add them again before the response is committed
+        injected = false;
+    }
+}
@@ -0,0 +1,378 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.web.filter;
+
+import static java.lang.System.nanoTime;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.abiquo.commons.metric.Gauge;
+import com.abiquo.commons.metric.Histogram;
+import com.abiquo.commons.metric.MetricKey;
+import com.abiquo.commons.metric.MetricRegistry;
+
+/**
+ * Times every request and records it in the {@link MetricRegistry}.
+ * <p>
+ * Requests are recorded in the <code>http.server.requests</code> histograms, tagged with the
+ * route, the HTTP method and the status class (<code>2xx</code>, <code>4xx</code>...). The route
+ * is the request path with the identifiers replaced by <code>{id}</code>; subclasses can override
+ * {@link #routeTemplate(HttpServletRequest)} to provide a better one. The
+ * <code>http.server.requests.inflight</code> gauge counts the requests in progress and the
+ * <code>http.server.requests.active</code> gauges count them per route.
+ * <p>
+ * It is configured with the following init-params:
+ * <ul>
+ * <li><code>enabled</code>: if <code>false</code> the filter just continues the chain.</li>
+ * <li><code>sampleRate</code>: fraction of the requests that are timed (1 by default). The
+ * gauges always count all requests.</li>
+ * <li><code>maxRoutes</code>: maximum number of routes tracked (200 by default). Requests to new
+ * routes once the limit is reached are recorded in the <code>other</code> route.</li>
+ * </ul>
+ * It should be the first filter of the chain, before the {@link BaseCORSFilter}, to time the
+ * whole request.
+ */
+public class MetricsFilter implements Filter
+{
+    public static final String REQUESTS_METRIC = "http.server.requests";
+
+    public static final String INFLIGHT_METRIC = "http.server.requests.inflight";
+
+    public static final String ACTIVE_METRIC = "http.server.requests.active";
+
+    public static final String OTHER_ROUTE = "other";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricsFilter.class);
+
+    private static final String[] METHODS =
+        {"GET", "POST", "PUT", "DELETE", "PATCH", "HEAD", "OPTIONS", "OTHER"};
+
+    private static final String[] STATUS_CLASSES = {"1xx", "2xx", "3xx", "4xx", "5xx", "other"};
+
+    private static final int DEFAULT_MAX_ROUTES = 200;
+
+    private final ConcurrentMap<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+
+    private MetricRegistry registry;
+
+    private boolean enabled;
+
+    private double sampleRate;
+
+    private int maxRoutes;
+
+    private Gauge inflight;
+
+    private RouteMetrics otherRoute;
+
+    /**
+     * Metrics of a route, resolved once to not look them up in the registry on each request.
+     */
+    private final class RouteMetrics
+    {
+        final String route;
+
+        final Gauge active;
+
+        final Histogram[] histograms = new Histogram[METHODS.length * STATUS_CLASSES.length];
+
+        RouteMetrics(final String route)
+        {
+            this.route = route;
+            this.active = registry.gauge(MetricKey.of(ACTIVE_METRIC, "route", route));
+        }
+
+        Histogram histogram(final int method, final int statusClass)
+        {
+            int index = method * STATUS_CLASSES.length + statusClass;
+            Histogram histogram = histograms[index];
+            if (histogram == null)
+            {
+                // The registry always returns the same histogram for the same key
+                histogram = registry.histogram(MetricKey.of(REQUESTS_METRIC, "route", route,
+                    "method", METHODS[method], "status", STATUS_CLASSES[statusClass]));
+                histograms[index] = histogram;
+            }
+            return histogram;
+        }
+    }
+
+    /**
+     * Gets the registry where the metrics are recorded.
+     */
+    protected MetricRegistry getRegistry()
+    {
+        return MetricRegistry.instance();
+    }
+
+    @Override
+    public void init(final FilterConfig filterConfig) throws ServletException
+    {
+        String enabledParam = filterConfig.getInitParameter("enabled");
+        String sampleRateParam = filterConfig.getInitParameter("sampleRate");
+        String maxRoutesParam = filterConfig.getInitParameter("maxRoutes");
+
+        enabled = enabledParam == null || Boolean.parseBoolean(enabledParam.trim());
+        sampleRate = sampleRateParam == null ? 1 : Double.parseDouble(sampleRateParam.trim());
+        maxRoutes =
+            maxRoutesParam == null ? DEFAULT_MAX_ROUTES : Integer.parseInt(maxRoutesParam.trim());
+
+        if (enabled)
+        {
+            registry = getRegistry();
+            inflight = registry.gauge(MetricKey.of(INFLIGHT_METRIC));
+            otherRoute = new RouteMetrics(OTHER_ROUTE);
+        }
+
+        LOGGER.info("Loading metrics filter (enabled: {}, sample rate: {}, max routes: {})",
+            enabled, sampleRate, maxRoutes);
+    }
+
+    @Override
+    public void doFilter(final ServletRequest request, final ServletResponse response,
+        final FilterChain chain) throws IOException, ServletException
+    {
+        if (!enabled || !(request instanceof HttpServletRequest))
+        {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        HttpServletRequest req = (HttpServletRequest) request;
+        HttpServletResponse res = (HttpServletResponse) response;
+
+        RouteMetrics route = route(routeTemplate(req));
+        boolean sampled = sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate;
+        long start = sampled ? nanoTime() : 0;
+
+        inflight.increment();
+        route.active.increment();
+
+        boolean failed = true;
+        try
+        {
+            chain.doFilter(request, response);
+            failed = false;
+        }
+        finally
+        {
+            if (!failed && req.isAsyncStarted())
+            {
+                req.getAsyncContext().addListener(new CompletionListener(route, req, res, start,
+                    sampled));
+            }
+            else
+            {
+                complete(route, req, res, start, sampled, failed);
+            }
+        }
+    }
+
+    @Override
+    public void destroy()
+    {
+        LOGGER.info("Destroying metrics filter");
+    }
+
+    /**
+     * Gets the route of the request, used to group its metrics.
+     * <p>
+     * By default it is the path within the application, with the numeric, UUID and hexadecimal
+     * segments replaced by <code>{id}</code>.
+     */
+    protected String routeTemplate(final HttpServletRequest request)
+    {
+        String uri = request.getRequestURI();
+        String contextPath = request.getContextPath();
+        int from = contextPath != null && uri.startsWith(contextPath) ? contextPath.length() : 0;
+
+        StringBuilder route = new StringBuilder(uri.length() - from);
+        int segmentStart = from;
+        for (int i = from; i <= uri.length(); i++)
+        {
+            if (i == uri.length() || uri.charAt(i) == '/')
+            {
+                if (isIdentifier(uri, segmentStart, i))
+                {
+                    route.append("{id}");
+                }
+                else
+                {
+                    route.append(uri, segmentStart, i);
+                }
+                if (i < uri.length())
+                {
+                    route.append('/');
+                }
+                segmentStart = i + 1;
+            }
+        }
+        return route.toString();
+    }
+
+    private RouteMetrics route(final String template)
+    {
+        RouteMetrics route = routes.get(template);
+        if (route != null)
+        {
+            return route;
+        }
+        if (routes.size() >= maxRoutes)
+        {
+            return otherRoute;
+        }
+        return routes.computeIfAbsent(template, RouteMetrics::new);
+    }
+
+    private void complete(final RouteMetrics route, final HttpServletRequest req,
+        final HttpServletResponse res, final long start, final boolean sampled,
+        final boolean failed)
+    {
+        inflight.decrement();
+        route.active.decrement();
+
+        if (sampled)
+        {
+            int status = res.getStatus();
+            if (failed && status < 400)
+            {
+                // The exception will end in an internal server error
+                status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+            }
+            route.histogram(methodIndex(req.getMethod()), statusClassIndex(status))
+                .record(nanoTime() - start);
+        }
+    }
+
+    /**
+     * Records asynchronous requests when they complete.
+     */
+    private final class CompletionListener implements AsyncListener
+    {
+        private final RouteMetrics route;
+
+        private final HttpServletRequest req;
+
+        private final HttpServletResponse res;
+
+        private final long start;
+
+        private final boolean sampled;
+
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        CompletionListener(final RouteMetrics route, final HttpServletRequest req,
+            final HttpServletResponse res, final long start, final boolean sampled)
+        {
+            this.route = route;
+            this.req = req;
+            this.res = res;
+            this.start = start;
+            this.sampled = sampled;
+        }
+
+        @Override
+        public void onComplete(final AsyncEvent event) throws IOException
+        {
+            complete(false);
+        }
+
+        @Override
+        public void onTimeout(final AsyncEvent event) throws IOException
+        {
+            complete(true);
+        }
+
+        @Override
+        public void onError(final AsyncEvent event) throws IOException
+        {
+            complete(true);
+        }
+
+        @Override
+        public void onStartAsync(final AsyncEvent event) throws IOException
+        {
+            // Nothing to do
+        }
+
+        private void complete(final boolean failed)
+        {
+            if (completed.compareAndSet(false, true))
+            {
+                MetricsFilter.this.complete(route, req, res, start, sampled, failed);
+            }
+        }
+    }
+
+    private static int methodIndex(final String method)
+    {
+        for (int i = 0; i < METHODS.length - 1; i++)
+        {
+            if (METHODS[i].equals(method))
+            {
+                return i;
+            }
+        }
+        return METHODS.length - 1;
+    }
+
+    private static int statusClassIndex(final int status)
+    {
+        int statusClass = status / 100 - 1;
+        return statusClass >= 0 && statusClass < STATUS_CLASSES.length - 1 ? statusClass
+            : STATUS_CLASSES.length - 1;
+    }
+
+    /**
+     * Checks if the segment is a number, a UUID or a long hexadecimal string.
+     */
+    private static boolean isIdentifier(final String path, final int from, final int to)
+    {
+        int length = to - from;
+        if (length == 0)
+        {
+            return false;
+        }
+
+        boolean digits = true;
+        boolean hex = true;
+        int dashes = 0;
+        for (int i = from; i < to; i++)
+        {
+            char c = path.charAt(i);
+            boolean digit = c >= '0' && c <= '9';
+            digits &= digit;
+            if (c == '-')
+            {
+                dashes++;
+            }
+            else
+            {
+                hex &= digit || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F';
+            }
+        }
+        return digits || hex && (length == 36 && dashes == 4 || dashes == 0 && length >= 16);
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.web.listener;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.abiquo.commons.crypto.Crypto;
+
+/**
+ * Starts deriving the {@link Crypto} key in the background when the webapp starts, so neither the
+ * startup nor the first request that needs it wait for the whole key derivation.
+ */
+public class CryptoInitializationListener implements ServletContextListener
+{
+    private static final Logger LOGGER =
+        LoggerFactory.getLogger(CryptoInitializationListener.class);
+
+    @Override
+    public void contextInitialized(final ServletContextEvent sce)
+    {
+        LOGGER.debug("Preloading the crypto key");
+        Crypto.preload();
+    }
+
+    @Override
+    public void contextDestroyed(final ServletContextEvent sce)
+    {
+        // Nothing to do
+    }
+}
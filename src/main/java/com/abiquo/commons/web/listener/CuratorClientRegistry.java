@@ -0,0 +1,198 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.web.listener;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryNTimes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.abiquo.commons.metric.Gauge;
+import com.abiquo.commons.metric.MetricKey;
+import com.abiquo.commons.metric.MetricRegistry;
+
+/**
+ * Reference counted registry of {@link CuratorFramework} clients, so all the users of the same
+ * ZooKeeper connection share a single session and its threads.
+ * <p>
+ * Clients are keyed by the connection string and the tuning parameters. The first
+ * {@link #acquire(String, int, int, int, int) acquire} creates and starts the client, and it is
+ * closed when the last {@link Lease} is closed. Users of a shared client must not close it, and
+ * must close the recipes and remove the listeners they added to it before releasing it.
+ * <p>
+ * The registry is shared by all the classes loaded by the same class loader. To share the clients
+ * among several webapps in the same container, this jar (and Curator) must be in a class loader
+ * common to all of them, such as the <code>lib</code> folder of Tomcat, instead of in the
+ * <code>WEB-INF/lib</code> of each webapp.
+ */
+public final class CuratorClientRegistry
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(CuratorClientRegistry.class);
+
+    private static final Gauge OPEN_CLIENTS =
+        MetricRegistry.instance().gauge(MetricKey.of("zk.clients.open"));
+
+    /** Clients by their configuration. Guarded by the class. */
+    private static final Map<Key, Entry> CLIENTS = new HashMap<>();
+
+    private CuratorClientRegistry()
+    {
+    }
+
+    /**
+     * Use of a shared client. Closing it releases the client, which is closed when it has no
+     * other users.
+     */
+    public static final class Lease implements Closeable
+    {
+        private final Key key;
+
+        private final Entry entry;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Lease(final Key key, final Entry entry)
+        {
+            this.key = key;
+            this.entry = entry;
+        }
+
+        /**
+         * Gets the started client.
+         */
+        public CuratorFramework getClient()
+        {
+            return entry.client;
+        }
+
+        @Override
+        public void close()
+        {
+            if (released.compareAndSet(false, true))
+            {
+                release(key, entry);
+            }
+        }
+    }
+
+    /**
+     * Gets a started client with the given configuration, creating it if there is none.
+     */
+    public static Lease acquire(final String connectString, final int sessionTimeoutMs,
+        final int connectionTimeoutMs, final int retries, final int sleepMsBetweenRetries)
+    {
+        Key key = new Key(requireNonNull(connectString, "connectString"), sessionTimeoutMs,
+            connectionTimeoutMs, retries, sleepMsBetweenRetries);
+
+        synchronized (CuratorClientRegistry.class)
+        {
+            Entry entry = CLIENTS.get(key);
+            if (entry == null)
+            {
+                CuratorFramework client = CuratorFrameworkFactory.newClient(connectString,
+                    sessionTimeoutMs, connectionTimeoutMs,
+                    new RetryNTimes(retries, sleepMsBetweenRetries));
+                client.start();
+
+                entry = new Entry(client);
+                CLIENTS.put(key, entry);
+                OPEN_CLIENTS.increment();
+                LOGGER.info("Opened shared ZooKeeper client to {}", connectString);
+            }
+
+            entry.references++;
+            LOGGER.debug("Acquired shared ZooKeeper client to {} ({} users)", connectString,
+                entry.references);
+            return new Lease(key, entry);
+        }
+    }
+
+    private static void release(final Key key, final Entry entry)
+    {
+        synchronized (CuratorClientRegistry.class)
+        {
+            entry.references--;
+            LOGGER.debug("Released shared ZooKeeper client to {} ({} users)", key.connectString,
+                entry.references);
+            if (entry.references > 0)
+            {
+                return;
+            }
+
+            CLIENTS.remove(key);
+            OPEN_CLIENTS.decrement();
+        }
+
+        LOGGER.info("Closing shared ZooKeeper client to {}", key.connectString);
+        entry.client.close();
+    }
+
+    private static final class Entry
+    {
+        final CuratorFramework client;
+
+        int references;
+
+        Entry(final CuratorFramework client)
+        {
+            this.client = client;
+        }
+    }
+
+    private static final class Key
+    {
+        final String connectString;
+
+        final int sessionTimeoutMs;
+
+        final int connectionTimeoutMs;
+
+        final int retries;
+
+        final int sleepMsBetweenRetries;
+
+        Key(final String connectString, final int sessionTimeoutMs,
+            final int connectionTimeoutMs, final int retries, final int sleepMsBetweenRetries)
+        {
+            this.connectString = connectString;
+            this.sessionTimeoutMs = sessionTimeoutMs;
+            this.connectionTimeoutMs = connectionTimeoutMs;
+            this.retries = retries;
+            this.sleepMsBetweenRetries = sleepMsBetweenRetries;
+        }
+
+        @Override
+        public boolean equals(final Object obj)
+        {
+            if (!(obj instanceof Key))
+            {
+                return false;
+            }
+            Key other = (Key) obj;
+            return connectString.equals(other.connectString)
+                && sessionTimeoutMs == other.sessionTimeoutMs
+                && connectionTimeoutMs == other.connectionTimeoutMs && retries == other.retries
+                && sleepMsBetweenRetries == other.sleepMsBetweenRetries;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(connectString, sessionTimeoutMs, connectionTimeoutMs, retries,
+                sleepMsBetweenRetries);
+        }
+    }
+}
@@ -6,70 +6,83 @@
  */
 package com.abiquo.commons.web.listener;
 
+import static com.abiquo.commons.web.listener.ZookeeperConfig.ZK_SERVER;
+import static com.abiquo.commons.web.listener.ZookeeperConfig.isDistributed;
 import static java.lang.Integer.valueOf;
+import static java.lang.Long.parseLong;
 import static java.lang.System.getProperty;
 import static java.lang.Thread.currentThread;
-import static org.apache.curator.framework.CuratorFrameworkFactory.newClient;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
 import org.apache.curator.framework.CuratorFramework;
-import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.leader.CancelLeadershipException;
 import org.apache.curator.framework.recipes.leader.LeaderSelector;
 import org.apache.curator.framework.recipes.leader.LeaderSelectorListener;
 import org.apache.curator.framework.recipes.leader.LeaderSelectorListenerAdapter;
-import org.apache.curator.retry.RetryNTimes;
+import org.apache.curator.framework.state.ConnectionState;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.abiquo.commons.web.ClusterConstants;
+import com.abiquo.commons.metric.MetricKey;
+import com.abiquo.commons.metric.MetricRegistry;
+import com.abiquo.commons.metric.TimedMetric;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Check for node distribution to directly use the {@link AMQPConsumersService} or delegate it to
  * the cluster leader notification.
+ * <p>
+ * By default the leadership is given up as soon as the connection to ZooKeeper is suspended. If
+ * {@link #resumeOnReconnect()} is enabled, the leader services are
+ * {@link #onLeadershipPaused() paused} instead, and {@link #onLeadershipResumed() resumed} if the
+ * connection is recovered before the session expires; the leadership is only given up if the
+ * connection is lost.
+ * <p>
+ * Followers can prepare the resources of the leader services ahead of time in
+ * {@link #onStandby()}, so {@link #onLeadershipTaken()} only has to activate them. The time to take
+ * the leadership (tagged with whether the node was on standby), to give it up, to get on standby
+ * and the pauses are recorded in the <code>zk.leadership.*</code> metrics.
+ * <p>
+ * {@link #onStandby()} runs in its own thread, so a slow standby neither delays the startup of
+ * the application nor the handover of the leadership to another node.
  */
 public abstract class LeadElectionContextListener extends LeaderSelectorListenerAdapter
     implements ServletContextListener
 
 {
-    /** Tune {@link CuratorFrameworkFactory}. Connection timeout */
-    private static final int ZK_CONNECTION_TIMEOUT_MS =
-        Integer.valueOf(getProperty("abiquo.api.zk." + "connectionTimeoutMs", "15000")); // 1sec
+    /** Pause the leader services instead of giving up the leadership on connection suspension. */
+    private static final boolean ZK_RESUME_ON_RECONNECT =
+        Boolean.valueOf(getProperty("abiquo.api.zk." + "resumeOnReconnect", "false"));
 
-    /** Tune {@link CuratorFrameworkFactory}. Num or retries on zk operation */
-    private static final int ZK_RETRIES =
-        Integer.valueOf(getProperty("abiquo.api.zk." + "connectionRetries", "10")); // 10times
-
-    /**
-     * Connection to ZooKeeper server. Property not set indicate non-distributed API
-     * {@link LeadElectionContextListener#isDistributed()}.
-     */
-    private final static String ZK_SERVER = getProperty(ClusterConstants.ZK_SERVER); // localhost:2181
-
-    /** Tune {@link CuratorFrameworkFactory}. Session timeout */
-    private static final int ZK_SESSION_TIMEOUT_MS =
-        Integer.valueOf(getProperty("abiquo.api.zk." + "sessionTimeoutMs", "15000")); // 15sec
-
-    /** Tune {@link CuratorFrameworkFactory}. Ms to sleep between retries. */
-    private static final int ZK_SLEEP_MS_BETWEEN_RETRIES =
-        Integer.valueOf(getProperty("abiquo.api.zk." + "sleepMsBetweenRetries", "5000")); // 1sec
+    /** Max time to wait for the standby in progress before taking the leadership. */
+    private static final long ZK_STANDBY_TIMEOUT_MS =
+        parseLong(getProperty("abiquo.api.zk." + "standbyTimeoutMs", "10000"));
 
     protected static final Logger LOGGER =
         LoggerFactory.getLogger(LeadElectionContextListener.class);
 
-    /** Check node configuration to know if participates in a cluster. */
-    private final static boolean isDistributed()
-    {
-        return ZK_SERVER != null;
-    }
-
     /** Zk-client connected to the cluster using the ZK_SERVER connection. */
     private CuratorFramework curatorClient;
 
+    /** Use of the shared client, released when the node leaves the cluster. */
+    private CuratorClientRegistry.Lease curatorLease;
+
     /**
      * Zk-recipe to select one participant in the cluster. (@see {@link LeaderSelectorListener} )
      */
@@ -113,11 +126,105 @@ public abstract class LeadElectionContextListener extends LeaderSelectorListener
      */
     public abstract void onLeadershipSuspended();
 
+    /**
+     * In a distributed environment, this method is invoked when the node joins the election and
+     * each time it goes back to be a follower after losing the leadership.
+     * <p>
+     * Use this method to warm the resources of the leader services (connection pools, caches...)
+     * without starting to do any work, so {@link #onLeadershipTaken()} is faster. If it fails the
+     * node still participates in the election and {@link #onLeadershipTaken()} is invoked as usual.
+     * <p>
+     * It is invoked from a dedicated thread, after the leadership has been released. If the node
+     * takes the leadership meanwhile, {@link #onLeadershipTaken()} waits for it to finish up to
+     * {@link #standbyTimeoutMs()}; then the standby is interrupted and the leadership is taken
+     * cold.
+     */
+    protected void onStandby() throws Exception
+    {
+        // Nothing to do by default
+    }
+
+    /**
+     * In a distributed environment with {@link #resumeOnReconnect()} enabled, this method is
+     * invoked in the leader when the connection to ZooKeeper is suspended. Another node could take
+     * the leadership if the session expires, so the leader services should stop doing work until
+     * the leadership is resumed or suspended.
+     * <p>
+     * It is invoked from the Curator event thread, so it should not block.
+     */
+    protected void onLeadershipPaused()
+    {
+        // Nothing to do by default
+    }
+
+    /**
+     * In a distributed environment with {@link #resumeOnReconnect()} enabled, this method is
+     * invoked when the connection is recovered with the same session after
+     * {@link #onLeadershipPaused()}. The node is still the leader and can resume its work. If the
+     * session was lost, {@link #onLeadershipSuspended()} is invoked instead.
+     * <p>
+     * It is invoked from the Curator event thread, so it should not block.
+     */
+    protected void onLeadershipResumed()
+    {
+        // Nothing to do by default
+    }
+
+    /**
+     * Whether to pause the leader services when the connection is suspended and resume them if it
+     * is recovered, instead of giving up the leadership. Defaults to the
+     * <code>abiquo.api.zk.resumeOnReconnect</code> property.
+     */
+    protected boolean resumeOnReconnect()
+    {
+        return ZK_RESUME_ON_RECONNECT;
+    }
+
+    /**
+     * Max milliseconds to wait for the {@link #onStandby()} in progress when the node takes the
+     * leadership. Defaults to the <code>abiquo.api.zk.standbyTimeoutMs</code> property.
+     */
+    protected long standbyTimeoutMs()
+    {
+        return ZK_STANDBY_TIMEOUT_MS;
+    }
+
     /**
      * Get the path for the node in Zookeeper.
      */
     private String zookeeperNodePath;
 
+    /** Guards the leadership state changes. */
+    private final Object leadershipLock = new Object();
+
+    /** ZooKeeper session in which the leadership was taken, or 0 if not the leader. */
+    private long leadershipSessionId;
+
+    /** Start of the current pause, or 0 if not paused. */
+    private long pausedAt;
+
+    /** Whether {@link #onStandby()} completed since the node was last the leader. */
+    private volatile boolean standby;
+
+    /** Whether the node is leaving the election. */
+    private volatile boolean closing;
+
+    /** Runs {@link #onStandby()} out of the leadership and the startup threads. */
+    private volatile ExecutorService standbyExecutor;
+
+    /** Last scheduled {@link #onStandby()}. */
+    private volatile Future< ? > pendingStandby = CompletableFuture.completedFuture(null);
+
+    private TimedMetric takeLeadershipWarmMetric;
+
+    private TimedMetric takeLeadershipColdMetric;
+
+    private TimedMetric standbyMetric;
+
+    private TimedMetric releaseLeadershipMetric;
+
+    private TimedMetric pauseLeadershipMetric;
+
     @Override
     public void contextDestroyed(final ServletContextEvent sce)
     {
@@ -134,6 +241,12 @@ public abstract class LeadElectionContextListener extends LeaderSelectorListener
     {
         zookeeperNodePath = sce.getServletContext().getContextPath() + "/leader-election";
 
+        takeLeadershipWarmMetric = leadershipMetric("take", "standby", "warm");
+        takeLeadershipColdMetric = leadershipMetric("take", "standby", "cold");
+        standbyMetric = leadershipMetric("standby");
+        releaseLeadershipMetric = leadershipMetric("release");
+        pauseLeadershipMetric = leadershipMetric("pause");
+
         initializeContext(sce);
 
         if (isDistributed())
@@ -164,10 +277,16 @@ public abstract class LeadElectionContextListener extends LeaderSelectorListener
     public void takeLeadership(final CuratorFramework client) throws Exception
     {
         Exception failedToTake = null;
+        long start = takeLeadershipWarmMetric.start();
+        awaitStandby();
+        TimedMetric takeLeadershipMetric =
+            standby ? takeLeadershipWarmMetric : takeLeadershipColdMetric;
+        standby = false;
         try
         {
             LOGGER.info("Taking leadership on {} ...", zookeeperNodePath);
             onLeadershipTaken();
+            takeLeadershipMetric.stop(start);
         }
         catch (Exception e)
         {
@@ -179,6 +298,11 @@ public abstract class LeadElectionContextListener extends LeaderSelectorListener
         {
             try
             {
+                synchronized (leadershipLock)
+                {
+                    leadershipSessionId = sessionId(client);
+                }
+
                 LOGGER.info("Leader on {}", zookeeperNodePath);
                 currentThread().join();
             }
@@ -190,6 +314,13 @@ public abstract class LeadElectionContextListener extends LeaderSelectorListener
             LOGGER.info("Current node no longer the {} leader", zookeeperNodePath);
         }
 
+        synchronized (leadershipLock)
+        {
+            leadershipSessionId = 0;
+            endPause();
+        }
+
+        long release = releaseLeadershipMetric.start();
         try
         {
             onLeadershipSuspended();
@@ -198,6 +329,13 @@ public abstract class LeadElectionContextListener extends LeaderSelectorListener
         {
             LOGGER.warn("Fail to cleanup onLeadershipSuspended on " + zookeeperNodePath, e);
         }
+        releaseLeadershipMetric.stop(release);
+
+        // Release the leadership before getting on standby, so another node can take it
+        if (!closing)
+        {
+            scheduleStandby();
+        }
 
         if (failedToTake != null)
         {
@@ -205,15 +343,186 @@ public abstract class LeadElectionContextListener extends LeaderSelectorListener
         }
     }
 
+    private void scheduleStandby()
+    {
+        ExecutorService executor = standbyExecutor;
+        if (executor == null)
+        {
+            return;
+        }
+
+        try
+        {
+            pendingStandby = executor.submit(this::standby);
+        }
+        catch (RejectedExecutionException e)
+        {
+            LOGGER.debug("Not getting on standby for {}; leaving the election", zookeeperNodePath);
+        }
+    }
+
+    /**
+     * Waits for the {@link #onStandby()} in progress, if any, and interrupts it if it does not
+     * finish in time.
+     */
+    private void awaitStandby()
+    {
+        Future< ? > pending = pendingStandby;
+        try
+        {
+            pending.get(standbyTimeoutMs(), MILLISECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            LOGGER.warn("Standby for {} not finished in {} ms; taking the leadership cold",
+                zookeeperNodePath, standbyTimeoutMs());
+            pending.cancel(true);
+        }
+        catch (InterruptedException e)
+        {
+            // The leadership is being cancelled; let the join be interrupted
+            currentThread().interrupt();
+        }
+        catch (ExecutionException | CancellationException e)
+        {
+            // standby() logs its own failures
+        }
+    }
+
+    private void standby()
+    {
+        long start = standbyMetric.start();
+        try
+        {
+            LOGGER.info("Getting on standby for {} ...", zookeeperNodePath);
+            onStandby();
+            standbyMetric.stop(start);
+            // A cancelled standby may still complete after the leadership was taken cold
+            standby = !currentThread().isInterrupted();
+        }
+        catch (Exception e)
+        {
+            LOGGER.warn("Fail to get on standby for " + zookeeperNodePath, e);
+        }
+    }
+
+    @Override
+    public void stateChanged(final CuratorFramework client, final ConnectionState newState)
+    {
+        LOGGER.debug("Connection to {} is {}", ZK_SERVER, newState);
+        if (!resumeOnReconnect() || newState == ConnectionState.LOST)
+        {
+            // Gives up the leadership on SUSPENDED and LOST
+            super.stateChanged(client, newState);
+            return;
+        }
+
+        synchronized (leadershipLock)
+        {
+            if (leadershipSessionId == 0)
+            {
+                return;
+            }
+
+            if (newState == ConnectionState.SUSPENDED && pausedAt == 0)
+            {
+                LOGGER.info("Connection suspended; pausing leadership on {}", zookeeperNodePath);
+                pausedAt = pauseLeadershipMetric.start();
+                invokeHook(true);
+            }
+            else if (newState == ConnectionState.RECONNECTED && pausedAt != 0)
+            {
+                endPause();
+                if (sessionId(client) != leadershipSessionId)
+                {
+                    // The lock node was removed with the old session
+                    LOGGER.info("Session expired; giving up leadership on {}", zookeeperNodePath);
+                    throw new CancelLeadershipException();
+                }
+
+                LOGGER.info("Connection recovered; resuming leadership on {}", zookeeperNodePath);
+                invokeHook(false);
+            }
+        }
+    }
+
+    private void invokeHook(final boolean pause)
+    {
+        try
+        {
+            if (pause)
+            {
+                onLeadershipPaused();
+            }
+            else
+            {
+                onLeadershipResumed();
+            }
+        }
+        catch (Exception e)
+        {
+            LOGGER.warn("Fail to " + (pause ? "pause" : "resume") + " leadership on "
+                + zookeeperNodePath, e);
+        }
+    }
+
+    private void endPause()
+    {
+        if (pausedAt != 0)
+        {
+            pauseLeadershipMetric.stop(pausedAt);
+            pausedAt = 0;
+        }
+    }
+
+    private static long sessionId(final CuratorFramework client)
+    {
+        try
+        {
+            return client.getZookeeperClient().getZooKeeper().getSessionId();
+        }
+        catch (Exception e)
+        {
+            // Not connected; it can't be the same session
+            return -1;
+        }
+    }
+
+    private TimedMetric leadershipMetric(final String operation, final String... tags)
+    {
+        Map<String, String> keyTags = new HashMap<>();
+        keyTags.put("path", zookeeperNodePath);
+        for (int i = 0; i < tags.length; i += 2)
+        {
+            keyTags.put(tags[i], tags[i + 1]);
+        }
+        MetricKey key = MetricKey.of("zk.leadership." + operation, keyTags);
+        return new TimedMetric(key, MetricRegistry.instance());
+    }
+
+    /**
+     * Gets the client to join the election. By default it is the client of the ZK_SERVER shared
+     * by all the listeners of this JVM.
+     */
+    protected CuratorClientRegistry.Lease acquireClient()
+    {
+        return ZookeeperConfig.acquireClient();
+    }
+
     /** Connects to ZK-Server and adds as participant to {@link LeaderSelector} cluster. */
     protected void startZookeeper() throws Exception
     {
-        curatorClient = newClient(ZK_SERVER, ZK_SESSION_TIMEOUT_MS, ZK_CONNECTION_TIMEOUT_MS, //
-            new RetryNTimes(ZK_RETRIES, ZK_SLEEP_MS_BETWEEN_RETRIES));
-        curatorClient.start();
+        curatorLease = acquireClient();
+        curatorClient = curatorLease.getClient();
 
         LOGGER.info("Connected to {}", ZK_SERVER);
 
+        closing = false;
+        standbyExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("leader-standby" + zookeeperNodePath.replace('/', '-')).setDaemon(true)
+            .build());
+        scheduleStandby();
+
         leaderSelector = new LeaderSelector(curatorClient, zookeeperNodePath, this);
         leaderSelector.autoRequeue();
         leaderSelector.setId(getHostName());
@@ -225,6 +534,7 @@ public abstract class LeadElectionContextListener extends LeaderSelectorListener
     protected void stopZookeeper()
     {
         LOGGER.debug("closing LeaderSelector ...");
+        closing = true;
         try
         {
 
@@ -234,18 +544,24 @@ public abstract class LeadElectionContextListener extends LeaderSelectorListener
         {
             LOGGER.warn("Cannot close leaderSelector", e);
         }
+        if (standbyExecutor != null)
+        {
+            standbyExecutor.shutdownNow();
+        }
         try
         {
 
-            curatorClient.close();
+            curatorLease.close();
         }
         catch (Exception e)
         {
-            LOGGER.warn("Cannot close curatorClient", e);
+            LOGGER.warn("Cannot release curatorClient", e);
         }
 
         leaderSelector = null;
+        standbyExecutor = null;
         curatorClient = null;
+        curatorLease = null;
     }
 
     /**
@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.web.listener;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.abiquo.commons.metric.AsyncMetricSink;
+
+/**
+ * Stops the thread that writes the metric log events when the webapp stops, so it does not keep
+ * the webapp loaded after a redeploy. The pending events are written before it stops.
+ * <p>
+ * The log events are shared by all the webapps that load this jar from the same class loader, so
+ * it must only be registered when the jar is in the <code>WEB-INF/lib</code> of the webapp.
+ */
+public class MetricSinkShutdownListener implements ServletContextListener
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricSinkShutdownListener.class);
+
+    @Override
+    public void contextInitialized(final ServletContextEvent sce)
+    {
+        // Nothing to do
+    }
+
+    @Override
+    public void contextDestroyed(final ServletContextEvent sce)
+    {
+        LOGGER.debug("Closing the metric log events sink");
+        AsyncMetricSink.closeLogEvents();
+    }
+}
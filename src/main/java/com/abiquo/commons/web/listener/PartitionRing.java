@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.web.listener;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Consistent hashing ring to spread partitions across the members of a group.
+ * <p>
+ * Each member is placed in the ring at several points (virtual nodes) and each partition belongs
+ * to the first member found clockwise from its own point. All the members compute the same
+ * assignment from the same list of members, and when a member joins or leaves only the
+ * partitions it takes or releases move.
+ */
+final class PartitionRing
+{
+    private static final HashFunction HASH = Hashing.murmur3_32();
+
+    private final TreeMap<Integer, String> ring = new TreeMap<>();
+
+    PartitionRing(final Collection<String> members, final int virtualNodes)
+    {
+        for (String member : members)
+        {
+            for (int i = 0; i < virtualNodes; i++)
+            {
+                // On collisions keep the smallest member, so all the nodes agree
+                ring.merge(hash(member + "#" + i), member,
+                    (current, other) -> current.compareTo(other) <= 0 ? current : other);
+            }
+        }
+    }
+
+    /**
+     * Gets the partitions, between 0 and <code>partitions - 1</code>, owned by the member.
+     */
+    Set<Integer> partitionsOf(final String member, final int partitions)
+    {
+        Set<Integer> owned = new TreeSet<>();
+        if (ring.isEmpty())
+        {
+            return owned;
+        }
+
+        for (int partition = 0; partition < partitions; partition++)
+        {
+            Map.Entry<Integer, String> owner = ring.ceilingEntry(hash("partition-" + partition));
+            if (owner == null)
+            {
+                owner = ring.firstEntry();
+            }
+            if (owner.getValue().equals(member))
+            {
+                owned.add(partition);
+            }
+        }
+        return owned;
+    }
+
+    private static int hash(final String value)
+    {
+        return HASH.hashString(value, StandardCharsets.UTF_8).asInt();
+    }
+}
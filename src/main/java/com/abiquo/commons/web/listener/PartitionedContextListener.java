@@ -0,0 +1,386 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.web.listener;
+
+import static com.abiquo.commons.web.listener.ZookeeperConfig.ZK_SERVER;
+import static com.abiquo.commons.web.listener.ZookeeperConfig.isDistributed;
+import static java.lang.System.getProperty;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache.StartMode;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.nodes.PersistentNode;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.abiquo.commons.metric.Counter;
+import com.abiquo.commons.metric.Gauge;
+import com.abiquo.commons.metric.MetricKey;
+import com.abiquo.commons.metric.MetricRegistry;
+import com.abiquo.commons.metric.TimedMetric;
+
+/**
+ * Spreads the work across all the nodes of the cluster, instead of running it in a single leader
+ * as {@link LeadElectionContextListener} does.
+ * <p>
+ * The work is split in a fixed number of logical partitions (the
+ * <code>abiquo.api.zk.partitions</code> property, 64 by default). Each node joins the group of
+ * its context path with an ephemeral node, and the partitions are assigned to the live members by
+ * consistent hashing, so when a node joins or leaves only the partitions it takes or releases move
+ * to another node. Each node is notified of the partitions it
+ * {@link #onPartitionsAssigned(Set) gets} and {@link #onPartitionsRevoked(Set) loses}.
+ * <p>
+ * All the partitions are revoked as soon as the connection to ZooKeeper is suspended, and
+ * reassigned once it is recovered and the list of members has been reloaded. Nodes are notified
+ * independently, so for a short time during a rebalance a partition can be owned by two nodes: the
+ * work must be idempotent. On shutdown the node revokes its partitions before leaving the group.
+ * <p>
+ * In non-distributed environments all the partitions are assigned to the node when it starts.
+ */
+public abstract class PartitionedContextListener implements ServletContextListener
+{
+    /** Number of logical partitions. Must be the same in all the nodes. */
+    private static final int ZK_PARTITIONS =
+        Integer.valueOf(getProperty("abiquo.api.zk." + "partitions", "64"));
+
+    /** Points of each member in the hash ring. */
+    private static final int ZK_VIRTUAL_NODES =
+        Integer.valueOf(getProperty("abiquo.api.zk." + "partitionVirtualNodes", "128"));
+
+    protected static final Logger LOGGER =
+        LoggerFactory.getLogger(PartitionedContextListener.class);
+
+    /** Zk-client connected to the cluster using the ZK_SERVER connection. */
+    private CuratorFramework curatorClient;
+
+    /** Use of the shared client, released when the node leaves the cluster. */
+    private CuratorClientRegistry.Lease curatorLease;
+
+    /** Ephemeral node of this member in the group. */
+    private PersistentNode memberNode;
+
+    /** Live members of the group. */
+    private PathChildrenCache members;
+
+    private String membersPath;
+
+    /** Whether the initial list of members has been loaded. */
+    private volatile boolean membersLoaded;
+
+    private final String memberId = UUID.randomUUID().toString();
+
+    /** Whether the node is leaving the group, so it must not take partitions. */
+    private volatile boolean leaving;
+
+    /** Partitions owned by this node. Guarded by this. */
+    private Set<Integer> owned = Collections.emptySet();
+
+    private TimedMetric rebalanceMetric;
+
+    private Gauge ownedGauge;
+
+    private Counter movedCounter;
+
+    /**
+     * Called when the application starts.
+     * <p>
+     * Use this method to perform initialization tasks, such as getting beans from the Spring
+     * context, and initializing class members.
+     */
+    public abstract void initializeContext(ServletContextEvent sce);
+
+    /**
+     * Called when the node is going to shut down, after revoking all its partitions.
+     * <p>
+     * Use this method to shutdown all services and release the resources.
+     */
+    public abstract void onShutdown(ServletContextEvent sce);
+
+    /**
+     * Invoked when the node becomes the owner of new partitions.
+     * <p>
+     * Use this method to start the work of the given partitions.
+     */
+    public abstract void onPartitionsAssigned(Set<Integer> partitions);
+
+    /**
+     * Invoked when the node is no longer the owner of some partitions.
+     * <p>
+     * Use this method to stop the work of the given partitions.
+     */
+    public abstract void onPartitionsRevoked(Set<Integer> partitions);
+
+    /**
+     * Gets the number of logical partitions. It must be the same in all the nodes.
+     */
+    protected int getPartitionCount()
+    {
+        return ZK_PARTITIONS;
+    }
+
+    /**
+     * Gets the partitions currently owned by this node.
+     */
+    public synchronized Set<Integer> getOwnedPartitions()
+    {
+        return owned;
+    }
+
+    @Override
+    public void contextInitialized(final ServletContextEvent sce)
+    {
+        String contextPath = sce.getServletContext().getContextPath();
+        membersPath = contextPath + "/partitions/members";
+
+        rebalanceMetric = new TimedMetric(MetricKey.of("zk.partitions.rebalance", "path",
+            membersPath), MetricRegistry.instance());
+        ownedGauge = MetricRegistry.instance()
+            .gauge(MetricKey.of("zk.partitions.owned", "path", membersPath));
+        movedCounter = MetricRegistry.instance()
+            .counter(MetricKey.of("zk.partitions.assigned", "path", membersPath));
+
+        initializeContext(sce);
+
+        if (isDistributed())
+        {
+            try
+            {
+                startZookeeper();
+            }
+            catch (Exception e)
+            {
+                String error = "Cannot start, zookeeper configuration enabled but not connection "
+                    + "to zk server at " + ZK_SERVER;
+                LOGGER.error(error, e);
+                throw new RuntimeException(error, e);
+            }
+        }
+        else
+        {
+            Set<Integer> all = new TreeSet<>();
+            for (int i = 0; i < getPartitionCount(); i++)
+            {
+                all.add(i);
+            }
+            assign(all);
+        }
+    }
+
+    @Override
+    public void contextDestroyed(final ServletContextEvent sce)
+    {
+        // Stop the work before other nodes take the partitions
+        leaving = true;
+        assign(Collections.<Integer> emptySet());
+
+        if (isDistributed())
+        {
+            stopZookeeper();
+        }
+
+        onShutdown(sce);
+    }
+
+    /** Connects to ZK-Server, joins the group and starts watching its members. */
+    protected void startZookeeper() throws Exception
+    {
+        curatorLease = ZookeeperConfig.acquireClient();
+        curatorClient = curatorLease.getClient();
+
+        LOGGER.info("Connected to {}", ZK_SERVER);
+
+        leaving = false;
+        members = new PathChildrenCache(curatorClient, membersPath, false);
+        members.getListenable().addListener((client, event) -> membersChanged(event));
+        members.start(StartMode.POST_INITIALIZED_EVENT);
+
+        memberNode = new PersistentNode(curatorClient, CreateMode.EPHEMERAL, false,
+            ZKPaths.makePath(membersPath, memberId),
+            LeadElectionContextListener.getHostName().getBytes(StandardCharsets.UTF_8));
+        memberNode.start();
+
+        LOGGER.info("Joined partition group at {} as {}", membersPath, memberId);
+    }
+
+    protected void stopZookeeper()
+    {
+        LOGGER.debug("leaving partition group ...");
+        try
+        {
+            memberNode.close();
+        }
+        catch (Exception e)
+        {
+            LOGGER.warn("Cannot close member node", e);
+        }
+        try
+        {
+            members.close();
+        }
+        catch (Exception e)
+        {
+            LOGGER.warn("Cannot close members cache", e);
+        }
+        try
+        {
+            curatorLease.close();
+        }
+        catch (Exception e)
+        {
+            LOGGER.warn("Cannot release curatorClient", e);
+        }
+
+        memberNode = null;
+        members = null;
+        curatorClient = null;
+        curatorLease = null;
+    }
+
+    private void membersChanged(final PathChildrenCacheEvent event)
+    {
+        switch (event.getType())
+        {
+            case CONNECTION_SUSPENDED:
+            case CONNECTION_LOST:
+                // Other nodes may take our partitions if the session expires
+                LOGGER.info("Connection {}; revoking all partitions", event.getType());
+                assign(Collections.<Integer> emptySet());
+                break;
+            case INITIALIZED:
+                membersLoaded = true;
+                rebalance();
+                break;
+            case CONNECTION_RECONNECTED:
+                // The cache refreshes the members in background, so it may still hold the ones
+                // seen before the suspension
+                if (membersLoaded && reloadMembers())
+                {
+                    rebalance();
+                }
+                break;
+            default:
+                // Do not assign partitions with a partial list of members
+                if (membersLoaded)
+                {
+                    rebalance();
+                }
+                break;
+        }
+    }
+
+    /**
+     * Reloads the members from the server, without notifying the listeners.
+     * 
+     * @return Whether the members have been reloaded.
+     */
+    private boolean reloadMembers()
+    {
+        PathChildrenCache cache = members;
+        if (cache == null)
+        {
+            return false;
+        }
+
+        try
+        {
+            cache.rebuild();
+            return true;
+        }
+        catch (Exception e)
+        {
+            // Partitions stay revoked until the next reconnection or change of members
+            LOGGER.warn("Cannot reload the members of " + membersPath, e);
+            return false;
+        }
+    }
+
+    private void rebalance()
+    {
+        PathChildrenCache cache = members;
+        if (cache == null)
+        {
+            return;
+        }
+
+        List<String> live = new ArrayList<>();
+        for (ChildData child : cache.getCurrentData())
+        {
+            live.add(ZKPaths.getNodeFromPath(child.getPath()));
+        }
+
+        long start = rebalanceMetric.start();
+        Set<Integer> partitions =
+            new PartitionRing(live, ZK_VIRTUAL_NODES).partitionsOf(memberId, getPartitionCount());
+        synchronized (this)
+        {
+            if (!leaving)
+            {
+                assign(partitions);
+            }
+        }
+        rebalanceMetric.stop(start);
+    }
+
+    /**
+     * Notifies the revoked and the assigned partitions to reach the given ones.
+     */
+    private synchronized void assign(final Set<Integer> partitions)
+    {
+        Set<Integer> revoked = new TreeSet<>(owned);
+        revoked.removeAll(partitions);
+        Set<Integer> assigned = new TreeSet<>(partitions);
+        assigned.removeAll(owned);
+        if (revoked.isEmpty() && assigned.isEmpty())
+        {
+            return;
+        }
+
+        owned = Collections.unmodifiableSet(new TreeSet<>(partitions));
+        ownedGauge.add(assigned.size() - revoked.size());
+        movedCounter.add(assigned.size());
+        LOGGER.info("Partitions of {}: revoked {}, assigned {}", membersPath, revoked, assigned);
+
+        // Revoke first, so the work of the node never exceeds its partitions
+        if (!revoked.isEmpty())
+        {
+            try
+            {
+                onPartitionsRevoked(Collections.unmodifiableSet(revoked));
+            }
+            catch (Exception e)
+            {
+                LOGGER.warn("Fail to revoke partitions " + revoked + " on " + membersPath, e);
+            }
+        }
+        if (!assigned.isEmpty())
+        {
+            try
+            {
+                onPartitionsAssigned(Collections.unmodifiableSet(assigned));
+            }
+            catch (Exception e)
+            {
+                LOGGER.warn("Fail to assign partitions " + assigned + " on " + membersPath, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.web.listener;
+
+import static java.lang.System.getProperty;
+
+import org.apache.curator.framework.CuratorFrameworkFactory;
+
+import com.abiquo.commons.web.ClusterConstants;
+
+/**
+ * ZooKeeper connection settings shared by the cluster aware listeners.
+ */
+final class ZookeeperConfig
+{
+    /** Tune {@link CuratorFrameworkFactory}. Connection timeout */
+    static final int ZK_CONNECTION_TIMEOUT_MS =
+        Integer.valueOf(getProperty("abiquo.api.zk." + "connectionTimeoutMs", "15000")); // 1sec
+
+    /** Tune {@link CuratorFrameworkFactory}. Num or retries on zk operation */
+    static final int ZK_RETRIES =
+        Integer.valueOf(getProperty("abiquo.api.zk." + "connectionRetries", "10")); // 10times
+
+    /**
+     * Connection to ZooKeeper server. Property not set indicate non-distributed API
+     * {@link #isDistributed()}.
+     */
+    static final String ZK_SERVER = getProperty(ClusterConstants.ZK_SERVER); // localhost:2181
+
+    /** Tune {@link CuratorFrameworkFactory}. Session timeout */
+    static final int ZK_SESSION_TIMEOUT_MS =
+        Integer.valueOf(getProperty("abiquo.api.zk." + "sessionTimeoutMs", "15000")); // 15sec
+
+    /** Tune {@link CuratorFrameworkFactory}. Ms to sleep between retries. */
+    static final int ZK_SLEEP_MS_BETWEEN_RETRIES =
+        Integer.valueOf(getProperty("abiquo.api.zk." + "sleepMsBetweenRetries", "5000")); // 1sec
+
+    private ZookeeperConfig()
+    {
+    }
+
+    /** Check node configuration to know if participates in a cluster. */
+    static boolean isDistributed()
+    {
+        return ZK_SERVER != null;
+    }
+
+    /** Gets a started client for the configured ZK_SERVER, shared in this JVM. */
+    static CuratorClientRegistry.Lease acquireClient()
+    {
+        return CuratorClientRegistry.acquire(ZK_SERVER, ZK_SESSION_TIMEOUT_MS,
+            ZK_CONNECTION_TIMEOUT_MS, ZK_RETRIES, ZK_SLEEP_MS_BETWEEN_RETRIES);
+    }
+}
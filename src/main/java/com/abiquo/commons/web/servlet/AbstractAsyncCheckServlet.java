@@ -0,0 +1,202 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.web.servlet;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.abiquo.commons.concurrent.SingleFlight;
+
+/**
+ * Check Servlet for Remote Services whose check waits on slow remote calls.
+ * <p>
+ * The check returns a {@link CompletableFuture} and the request is put in asynchronous mode, so
+ * the container thread is released while the check runs. The response is written when the future
+ * completes or when the <code>asyncTimeoutMs</code> init-param (10 seconds by default) is reached,
+ * whatever happens first.
+ * <p>
+ * Concurrent requests share the running check. A request that reaches the timeout is answered
+ * as failed, but the check keeps running for the other requests that share it. In the cached mode
+ * fresh results are served right away, and failed or stale ones are checked again asynchronously.
+ * <p>
+ * The servlet must be declared as
+ * <code>&lt;async-supported&gt;true&lt;/async-supported&gt;</code> (and so must all the filters
+ * in front of it). Otherwise the check is run synchronously as in {@link AbstractCheckServlet}.
+ */
+public abstract class AbstractAsyncCheckServlet extends AbstractCheckServlet
+{
+    /** Init-param with the maximum time to wait for the check to complete. */
+    public static final String ASYNC_TIMEOUT_PARAM = "asyncTimeoutMs";
+
+    private static final long DEFAULT_ASYNC_TIMEOUT_MS = 10000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AbstractAsyncCheckServlet.class);
+
+    private static final long serialVersionUID = 1L;
+
+    /** Shares the running asynchronous check between concurrent requests. */
+    private final transient SingleFlight<String, Boolean> inFlightAsyncCheck =
+        new SingleFlight<>();
+
+    /**
+     * Starts a check to validate Remote Service status.
+     *
+     * @return A future with the status of the Remote Service. It must complete exceptionally if
+     *         the Remote Service is not available. A <code>null</code> future is a failed check.
+     */
+    protected abstract CompletableFuture<Boolean> checkAsync();
+
+    /**
+     * Gets the maximum time, in milliseconds, to wait for the check to complete.
+     */
+    protected long getAsyncTimeoutMs()
+    {
+        String timeout = getInitParameter(ASYNC_TIMEOUT_PARAM);
+        return timeout == null ? DEFAULT_ASYNC_TIMEOUT_MS : Long.parseLong(timeout.trim());
+    }
+
+    @Override
+    protected boolean check() throws Exception
+    {
+        try
+        {
+            return evaluateAsync().get(getAsyncTimeoutMs(), MILLISECONDS);
+        }
+        catch (ExecutionException ex)
+        {
+            throw unwrap(ex.getCause());
+        }
+    }
+
+    @Override
+    protected void doGet(final HttpServletRequest req, final HttpServletResponse resp)
+        throws ServletException, IOException
+    {
+        if (!req.isAsyncSupported())
+        {
+            super.doGet(req, resp);
+            return;
+        }
+
+        if (isCached())
+        {
+            CheckResult cached = servableResult();
+            if (cached != null)
+            {
+                resp.setHeader(CHECK_AGE_HEADER, String.valueOf(cached.ageMillis()));
+                respond(req, resp, cached);
+                return;
+            }
+        }
+
+        long timeoutMs = getAsyncTimeoutMs();
+        AsyncContext async = req.startAsync(req, resp);
+        async.setTimeout(timeoutMs);
+
+        CompletableFuture<Boolean> future = evaluateAsync();
+
+        // Only the first of the check or the timeout writes the response
+        AtomicBoolean responded = new AtomicBoolean();
+        async.addListener(new AsyncListener()
+        {
+            @Override
+            public void onTimeout(final AsyncEvent event) throws IOException
+            {
+                // Do not cancel the shared check: other requests may still be waiting for it
+                complete(async, responded, CheckResult.failed(
+                    new TimeoutException("Check did not complete in " + timeoutMs + " ms")));
+            }
+
+            @Override
+            public void onError(final AsyncEvent event) throws IOException
+            {
+                // The check may still be shared with other requests
+                responded.set(true);
+            }
+
+            @Override
+            public void onComplete(final AsyncEvent event) throws IOException
+            {
+                // Nothing to do
+            }
+
+            @Override
+            public void onStartAsync(final AsyncEvent event) throws IOException
+            {
+                // Nothing to do
+            }
+        });
+
+        future.whenComplete((healthy, error) -> {
+            CheckResult result = error == null ? CheckResult.of(Boolean.TRUE.equals(healthy))
+                : CheckResult.failed(unwrap(error));
+            if (isCached())
+            {
+                cacheResult(result);
+            }
+            complete(async, responded, result);
+        });
+    }
+
+    /**
+     * Starts the check, or gets the one already running.
+     */
+    private CompletableFuture<Boolean> evaluateAsync()
+    {
+        return inFlightAsyncCheck.executeAsync(getServletName(), this::checkAsync);
+    }
+
+    private void complete(final AsyncContext async, final AtomicBoolean responded,
+        final CheckResult result)
+    {
+        if (!responded.compareAndSet(false, true))
+        {
+            return;
+        }
+
+        try
+        {
+            HttpServletResponse resp = (HttpServletResponse) async.getResponse();
+            if (isCached())
+            {
+                resp.setHeader(CHECK_AGE_HEADER, String.valueOf(result.ageMillis()));
+            }
+            respond((HttpServletRequest) async.getRequest(), resp, result);
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            LOGGER.warn("Could not write check response", ex);
+        }
+        finally
+        {
+            async.complete();
+        }
+    }
+
+    private static Exception unwrap(final Throwable error)
+    {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null
+            ? error.getCause() : error;
+        return cause instanceof Exception ? (Exception) cause : new ExecutionException(cause);
+    }
+}
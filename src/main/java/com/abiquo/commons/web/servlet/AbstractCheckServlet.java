@@ -7,8 +7,11 @@
 package com.abiquo.commons.web.servlet;
 
 import static java.lang.System.getProperty;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -18,11 +21,24 @@ import javax.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.abiquo.commons.concurrent.SingleFlight;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 /**
  * Base implementation of the Check Servlet.
  * <p>
  * Each Remote Service in the platform must implement its own <code>CheckServlet</code> to let
  * consumers test its availability.
+ * <p>
+ * By default every request runs {@link #check()}. Setting the <code>refreshIntervalMs</code>
+ * init-param enables the cached mode: a background thread runs the check at that interval and
+ * requests are served with the last result, as long as it is not older than
+ * <code>maxStalenessMs</code> (three intervals by default). Failed results are never served from
+ * the cache; the check is run again to see if the service has recovered. The age of the served
+ * result is returned in the {@value #CHECK_AGE_HEADER} header.
+ * <p>
+ * Concurrent requests never run the check more than once at the same time: requests arriving
+ * while it is running wait for it and get the same result.
  * 
  * @author ibarrera
  */
@@ -32,12 +48,32 @@ public abstract class AbstractCheckServlet extends HttpServlet
 
     public static final String DATACENTER_UUID_MEDIA_TYPE = "text/vnd.abiquo.datacenteruuid";
 
+    /** Header with the milliseconds elapsed since the served check result was computed. */
+    public static final String CHECK_AGE_HEADER = "X-Abiquo-Check-Age";
+
+    /** Init-param with the interval of the background check refresh. Disabled if not set. */
+    public static final String REFRESH_INTERVAL_PARAM = "refreshIntervalMs";
+
+    /** Init-param with the maximum age of a cached result before the check is run again. */
+    public static final String MAX_STALENESS_PARAM = "maxStalenessMs";
+
     /** The logger. */
     private static final Logger LOGGER = LoggerFactory.getLogger(AbstractCheckServlet.class);
 
     /** Serial UID. */
     private static final long serialVersionUID = 1L;
 
+    /** Runs the check in the background when the cached mode is enabled. */
+    private transient ScheduledExecutorService refresher;
+
+    /** The last computed result. Only used when the cached mode is enabled. */
+    private transient volatile CheckResult lastResult;
+
+    private long maxStalenessMs;
+
+    /** Shares the running check between concurrent requests. */
+    private final transient SingleFlight<String, CheckResult> inFlightCheck = new SingleFlight<>();
+
     /**
      * Performs a check to validate Remote Service status.
      * 
@@ -57,13 +93,93 @@ public abstract class AbstractCheckServlet extends HttpServlet
         return DATACENTER_ID;
     }
 
+    /**
+     * Gets the interval, in milliseconds, at which the check is run in the background.
+     * 
+     * @return The refresh interval, or zero to run the check on every request.
+     */
+    protected long getRefreshIntervalMs()
+    {
+        String interval = getInitParameter(REFRESH_INTERVAL_PARAM);
+        return interval == null ? 0 : Long.parseLong(interval.trim());
+    }
+
+    /**
+     * Gets the maximum age, in milliseconds, of a cached result. Older results are discarded and
+     * the check is run in the request thread.
+     */
+    protected long getMaxStalenessMs()
+    {
+        String staleness = getInitParameter(MAX_STALENESS_PARAM);
+        return staleness == null ? 3 * getRefreshIntervalMs() : Long.parseLong(staleness.trim());
+    }
+
+    @Override
+    public void init() throws ServletException
+    {
+        long refreshIntervalMs = getRefreshIntervalMs();
+        if (refreshIntervalMs > 0)
+        {
+            maxStalenessMs = getMaxStalenessMs();
+            refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("check-refresh-" + getServletName()).setDaemon(true).build());
+            refresher.scheduleWithFixedDelay(this::refresh, 0, refreshIntervalMs, MILLISECONDS);
+
+            LOGGER.info("Running {} every {} ms (max staleness {} ms)", getServletName(),
+                refreshIntervalMs, maxStalenessMs);
+        }
+    }
+
+    @Override
+    public void destroy()
+    {
+        if (refresher != null)
+        {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
     @Override
     protected void doGet(final HttpServletRequest req, final HttpServletResponse resp)
         throws ServletException, IOException
+    {
+        CheckResult result;
+        if (isCached())
+        {
+            result = cachedResult();
+            resp.setHeader(CHECK_AGE_HEADER, String.valueOf(result.ageMillis()));
+        }
+        else
+        {
+            result = evaluate();
+        }
+
+        respond(req, resp, result);
+    }
+
+    /**
+     * True if requests are served with the result computed in the background.
+     */
+    boolean isCached()
+    {
+        return refresher != null;
+    }
+
+    /**
+     * Writes the response for the given check result.
+     */
+    void respond(final HttpServletRequest req, final HttpServletResponse resp,
+        final CheckResult result) throws IOException
     {
         try
         {
-            if (check())
+            if (result.getError() != null)
+            {
+                throw result.getError();
+            }
+
+            if (result.isHealthy())
             {
                 if (hasDatacenterUuidMediaType(req))
                 {
@@ -86,6 +202,89 @@ public abstract class AbstractCheckServlet extends HttpServlet
         }
     }
 
+    /**
+     * Runs the check, or waits for the one already running, and captures its outcome.
+     */
+    CheckResult evaluate()
+    {
+        try
+        {
+            return inFlightCheck.execute(getServletName(), this::runCheck);
+        }
+        catch (Exception ex)
+        {
+            // Interrupted while waiting for the running check
+            return CheckResult.failed(ex);
+        }
+    }
+
+    /**
+     * Runs the check once and captures its outcome.
+     */
+    CheckResult runCheck()
+    {
+        try
+        {
+            return CheckResult.of(check());
+        }
+        catch (Exception ex)
+        {
+            return CheckResult.failed(ex);
+        }
+    }
+
+    /**
+     * Gets the number of times the check has been run.
+     */
+    protected long getExecutedChecks()
+    {
+        return inFlightCheck.getExecutions();
+    }
+
+    /**
+     * Gets the number of requests that got the result of a check run by a concurrent request.
+     */
+    protected long getSharedChecks()
+    {
+        return inFlightCheck.getSharedResults();
+    }
+
+    /**
+     * Returns the last result computed in the background, or runs the check if it failed or it is
+     * too old.
+     */
+    private CheckResult cachedResult()
+    {
+        CheckResult result = servableResult();
+        return result == null ? refresh() : result;
+    }
+
+    /**
+     * Gets the last result computed in the background, or <code>null</code> if it failed or it is
+     * too old to be served.
+     */
+    CheckResult servableResult()
+    {
+        CheckResult result = lastResult;
+        return result == null || !result.isHealthy() || result.ageMillis() > maxStalenessMs ? null
+            : result;
+    }
+
+    /**
+     * Keeps a result computed outside the background refresh, to be served to the next requests.
+     */
+    void cacheResult(final CheckResult result)
+    {
+        lastResult = result;
+    }
+
+    private CheckResult refresh()
+    {
+        CheckResult result = evaluate();
+        lastResult = result;
+        return result;
+    }
+
     /**
      * Returns a {@link HttpServletResponse#SC_OK} HTTP code indicating that the Remote Service is
      * available. Fills the body with the datacenter id.
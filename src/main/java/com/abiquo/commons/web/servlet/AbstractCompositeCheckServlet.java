@@ -0,0 +1,282 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.web.servlet;
+
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.abiquo.commons.web.servlet.CompositeCheckReport.Entry;
+import com.abiquo.commons.web.servlet.CompositeCheckReport.Status;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Check Servlet that aggregates several named sub-checks.
+ * <p>
+ * Subclasses register their sub-checks in {@link #registerChecks()}. On each check all of them
+ * run concurrently in a bounded pool, each one with its own deadline, and the Remote Service is
+ * available only if all of them succeed. A sub-check that does not finish in time is cancelled and
+ * reported as failed, so a hung dependency does not hang the whole probe.
+ * <p>
+ * The response is the same as in {@link AbstractCheckServlet}, unless the request accepts
+ * <code>application/json</code>. In that case the body lists the status and latency of each
+ * sub-check.
+ */
+public abstract class AbstractCompositeCheckServlet extends AbstractCheckServlet
+{
+    /** Init-param with the number of threads used to run the sub-checks. */
+    public static final String CHECK_THREADS_PARAM = "checkThreads";
+
+    /** Init-param with the default deadline of the sub-checks. */
+    public static final String CHECK_TIMEOUT_PARAM = "checkTimeoutMs";
+
+    private static final String JSON_MEDIA_TYPE = "application/json";
+
+    private static final int DEFAULT_CHECK_THREADS = 4;
+
+    private static final long DEFAULT_CHECK_TIMEOUT_MS = 5000;
+
+    /** Pending sub-checks allowed per thread before new executions are rejected. */
+    private static final int QUEUED_CHECKS_PER_THREAD = 8;
+
+    private static final Logger LOGGER =
+        LoggerFactory.getLogger(AbstractCompositeCheckServlet.class);
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * A dependency probe run as part of the composite check.
+     */
+    @FunctionalInterface
+    public interface SubCheck
+    {
+        /**
+         * @return A boolean indicating the status of the dependency.
+         * @throws Exception If the dependency is not available.
+         */
+        boolean check() throws Exception;
+    }
+
+    private static final class RegisteredCheck
+    {
+        final SubCheck check;
+
+        final long timeoutMs;
+
+        RegisteredCheck(final SubCheck check, final long timeoutMs)
+        {
+            this.check = check;
+            this.timeoutMs = timeoutMs;
+        }
+    }
+
+    private final transient Map<String, RegisteredCheck> checks = new LinkedHashMap<>();
+
+    private transient ThreadPoolExecutor executor;
+
+    /**
+     * Registers the sub-checks with {@link #registerCheck(String, SubCheck)}. Called once when the
+     * servlet is initialized.
+     */
+    protected abstract void registerChecks();
+
+    /**
+     * Registers a sub-check with the default deadline.
+     */
+    protected final void registerCheck(final String name, final SubCheck check)
+    {
+        registerCheck(name, check, getCheckTimeoutMs());
+    }
+
+    /**
+     * Registers a sub-check that is considered failed if it does not complete in
+     * <code>timeoutMs</code> milliseconds.
+     */
+    protected final void registerCheck(final String name, final SubCheck check,
+        final long timeoutMs)
+    {
+        checks.put(name, new RegisteredCheck(check, timeoutMs));
+    }
+
+    /**
+     * Gets the default deadline, in milliseconds, of the sub-checks.
+     */
+    protected long getCheckTimeoutMs()
+    {
+        String timeout = getInitParameter(CHECK_TIMEOUT_PARAM);
+        return timeout == null ? DEFAULT_CHECK_TIMEOUT_MS : Long.parseLong(timeout.trim());
+    }
+
+    /**
+     * Gets the number of threads used to run the sub-checks.
+     */
+    protected int getCheckThreads()
+    {
+        String threads = getInitParameter(CHECK_THREADS_PARAM);
+        return threads == null ? DEFAULT_CHECK_THREADS : Integer.parseInt(threads.trim());
+    }
+
+    @Override
+    public void init() throws ServletException
+    {
+        registerChecks();
+
+        int threads = getCheckThreads();
+        executor = new ThreadPoolExecutor(threads, threads, 60, SECONDS,
+            new ArrayBlockingQueue<>(threads * QUEUED_CHECKS_PER_THREAD),
+            new ThreadFactoryBuilder().setNameFormat("check-" + getServletName() + "-%d")
+                .setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+
+        LOGGER.info("Registered checks {} in {}", checks.keySet(), getServletName());
+
+        super.init();
+    }
+
+    @Override
+    public void destroy()
+    {
+        super.destroy();
+        if (executor != null)
+        {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    @Override
+    protected final boolean check() throws Exception
+    {
+        return runChecks().isHealthy();
+    }
+
+    @Override
+    CheckResult runCheck()
+    {
+        // Keep the report with the status, so concurrent checks can't mix them up
+        return CheckResult.of(runChecks());
+    }
+
+    @Override
+    void respond(final HttpServletRequest req, final HttpServletResponse resp,
+        final CheckResult result) throws IOException
+    {
+        CompositeCheckReport report = result.getReport();
+        if (report == null || result.getError() != null || !acceptsJson(req))
+        {
+            super.respond(req, resp, result);
+            return;
+        }
+
+        resp.setStatus(result.isHealthy() ? HttpServletResponse.SC_OK
+            : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        resp.setContentType(JSON_MEDIA_TYPE);
+        resp.getWriter().write(report.toJson());
+    }
+
+    /**
+     * Runs all the registered sub-checks concurrently and waits until each one completes or
+     * reaches its deadline.
+     */
+    private CompositeCheckReport runChecks()
+    {
+        long start = nanoTime();
+
+        Map<String, Future<Entry>> futures = new LinkedHashMap<>();
+        List<Entry> entries = new ArrayList<>(checks.size());
+        for (Map.Entry<String, RegisteredCheck> check : checks.entrySet())
+        {
+            try
+            {
+                futures.put(check.getKey(),
+                    executor.submit(() -> runCheck(check.getKey(), check.getValue().check)));
+            }
+            catch (RejectedExecutionException ex)
+            {
+                entries.add(new Entry(check.getKey(), Status.ERROR, 0, "Too many pending checks"));
+            }
+        }
+
+        for (Map.Entry<String, Future<Entry>> future : futures.entrySet())
+        {
+            String name = future.getKey();
+            long deadline = start + MILLISECONDS.toNanos(checks.get(name).timeoutMs);
+            try
+            {
+                entries.add(future.getValue().get(deadline - nanoTime(), NANOSECONDS));
+            }
+            catch (TimeoutException ex)
+            {
+                future.getValue().cancel(true);
+                entries.add(new Entry(name, Status.TIMEOUT, elapsedMillis(start), null));
+            }
+            catch (ExecutionException ex)
+            {
+                entries.add(new Entry(name, Status.ERROR, elapsedMillis(start),
+                    ex.getCause().getMessage()));
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                future.getValue().cancel(true);
+                entries.add(new Entry(name, Status.ERROR, elapsedMillis(start), "Interrupted"));
+            }
+        }
+
+        CompositeCheckReport report = new CompositeCheckReport(entries);
+        if (!report.isHealthy())
+        {
+            LOGGER.warn("Failed checks {} in {}", report.failed(), getServletName());
+        }
+        return report;
+    }
+
+    private static Entry runCheck(final String name, final SubCheck check)
+    {
+        long start = nanoTime();
+        try
+        {
+            Status status = check.check() ? Status.UP : Status.DOWN;
+            return new Entry(name, status, elapsedMillis(start), null);
+        }
+        catch (Exception ex)
+        {
+            return new Entry(name, Status.ERROR, elapsedMillis(start), ex.getMessage());
+        }
+    }
+
+    private static long elapsedMillis(final long startNanos)
+    {
+        return NANOSECONDS.toMillis(nanoTime() - startNanos);
+    }
+
+    private static boolean acceptsJson(final HttpServletRequest request)
+    {
+        String accept = request.getHeader("accept");
+        return accept != null && accept.contains(JSON_MEDIA_TYPE);
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.web.servlet;
+
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Outcome of a single execution of {@link AbstractCheckServlet#check()}.
+ * <p>
+ * Captures the returned status or the thrown exception, and the moment the check finished, so the
+ * result can be served again while it is fresh enough. Composite checks also keep the report of
+ * the sub-checks, so the response always describes the execution that produced the status.
+ */
+final class CheckResult
+{
+    private final boolean healthy;
+
+    private final Exception error;
+
+    private final CompositeCheckReport report;
+
+    private final long timestampNanos;
+
+    private CheckResult(final boolean healthy, final Exception error,
+        final CompositeCheckReport report)
+    {
+        this.healthy = healthy;
+        this.error = error;
+        this.report = report;
+        this.timestampNanos = nanoTime();
+    }
+
+    static CheckResult of(final boolean healthy)
+    {
+        return new CheckResult(healthy, null, null);
+    }
+
+    static CheckResult of(final CompositeCheckReport report)
+    {
+        return new CheckResult(report.isHealthy(), null, report);
+    }
+
+    static CheckResult failed(final Exception error)
+    {
+        return new CheckResult(false, error, null);
+    }
+
+    /** True if the check returned <code>true</code> without throwing an exception. */
+    boolean isHealthy()
+    {
+        return healthy;
+    }
+
+    /** The exception thrown by the check, or <code>null</code> if it returned normally. */
+    Exception getError()
+    {
+        return error;
+    }
+
+    /** The report of the sub-checks, or <code>null</code> if it is not a composite check. */
+    CompositeCheckReport getReport()
+    {
+        return report;
+    }
+
+    /** Milliseconds elapsed since the check finished. */
+    long ageMillis()
+    {
+        return NANOSECONDS.toMillis(nanoTime() - timestampNanos);
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.web.servlet;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Status and latency of each sub-check run by an {@link AbstractCompositeCheckServlet}.
+ */
+final class CompositeCheckReport
+{
+    /** Outcome of a single sub-check. */
+    enum Status
+    {
+        UP, DOWN, TIMEOUT, ERROR
+    }
+
+    static final class Entry
+    {
+        final String name;
+
+        final Status status;
+
+        final long latencyMs;
+
+        final String message;
+
+        Entry(final String name, final Status status, final long latencyMs, final String message)
+        {
+            this.name = name;
+            this.status = status;
+            this.latencyMs = latencyMs;
+            this.message = message;
+        }
+    }
+
+    private final List<Entry> entries;
+
+    CompositeCheckReport(final List<Entry> entries)
+    {
+        this.entries = ImmutableList.copyOf(entries);
+    }
+
+    /** True if all sub-checks are {@link Status#UP}. */
+    boolean isHealthy()
+    {
+        return entries.stream().allMatch(e -> e.status == Status.UP);
+    }
+
+    /** Names of the sub-checks that are not {@link Status#UP}. */
+    List<String> failed()
+    {
+        return entries.stream().filter(e -> e.status != Status.UP).map(e -> e.name)
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * Renders the report as a JSON document.
+     */
+    String toJson()
+    {
+        StringBuilder json = new StringBuilder(64 + entries.size() * 64);
+        json.append("{\"status\":\"").append(isHealthy() ? Status.UP : Status.DOWN)
+            .append("\",\"checks\":[");
+        for (int i = 0; i < entries.size(); i++)
+        {
+            Entry entry = entries.get(i);
+            if (i > 0)
+            {
+                json.append(',');
+            }
+            json.append("{\"name\":");
+            appendString(json, entry.name);
+            json.append(",\"status\":\"").append(entry.status).append("\",\"latencyMs\":")
+                .append(entry.latencyMs);
+            if (entry.message != null)
+            {
+                json.append(",\"message\":");
+                appendString(json, entry.message);
+            }
+            json.append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    private static void appendString(final StringBuilder json, final String value)
+    {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            switch (c)
+            {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                    {
+                        json.append(String.format("\\u%04x", (int) c));
+                    }
+                    else
+                    {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,409 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.web.servlet;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.abiquo.commons.metric.Counter;
+import com.abiquo.commons.metric.Gauge;
+import com.abiquo.commons.metric.Histogram;
+import com.abiquo.commons.metric.MetricKey;
+import com.abiquo.commons.metric.MetricRegistry;
+import com.abiquo.commons.web.version.WebAppVersion;
+
+/**
+ * Exposes the metrics of the {@link MetricRegistry} in the Prometheus text format.
+ * <p>
+ * Histograms are rendered as summaries in seconds (they hold the nanoseconds measured by the
+ * timers), with the 0.5, 0.99 and 0.999 quantiles. Counters and gauges are rendered as they are.
+ * The response also includes the JVM memory, thread and garbage collection gauges and an
+ * <code>abiquo_webapp_info</code> series with the version of the webapp.
+ * <p>
+ * The metric families are grouped and their labels rendered only when new series are registered,
+ * and values are computed from the live metrics and written straight to the response, so a scrape
+ * barely allocates. Series of different types whose names clash are not exposed.
+ */
+public class MetricsServlet extends HttpServlet
+{
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricsServlet.class);
+
+    private static final long serialVersionUID = 1L;
+
+    private static final double[] PERCENTILES = {50, 99, 99.9};
+
+    private static final String[] QUANTILE_LABELS = {"quantile=\"0.5\"}", "quantile=\"0.99\"}",
+    "quantile=\"0.999\"}"};
+
+    /** Series of the same metric name, rendered together as Prometheus requires. */
+    private static final class Family
+    {
+        final String name;
+
+        final String type;
+
+        final List<Series> series = new ArrayList<>();
+
+        Family(final String name, final String type)
+        {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    private static final class Series
+    {
+        final Object metric;
+
+        /** Rendered labels, or the empty string. */
+        final String labels;
+
+        /** Rendered labels without the closing brace, to append the quantile label. */
+        final String openLabels;
+
+        Series(final MetricKey key, final Object metric)
+        {
+            this.metric = metric;
+
+            StringBuilder rendered = new StringBuilder("{");
+            for (Map.Entry<String, String> tag : key.getTags().entrySet())
+            {
+                rendered.append(sanitize(tag.getKey())).append("=\"");
+                escape(rendered, tag.getValue());
+                rendered.append("\",");
+            }
+            openLabels = rendered.toString();
+            labels = key.getTags().isEmpty() ? ""
+                : openLabels.substring(0, openLabels.length() - 1) + "}";
+        }
+    }
+
+    private transient MetricRegistry registry;
+
+    private transient String versionSeries;
+
+    /** Families of the registry, rebuilt when the number of series changes. */
+    private transient volatile List<Family> families;
+
+    private transient volatile int familiesSize = -1;
+
+    /**
+     * Gets the registry to expose.
+     */
+    protected MetricRegistry getRegistry()
+    {
+        return MetricRegistry.instance();
+    }
+
+    @Override
+    public void init() throws ServletException
+    {
+        registry = getRegistry();
+
+        try
+        {
+            WebAppVersion version = WebAppVersion.get(getServletContext());
+            StringBuilder series = new StringBuilder("abiquo_webapp_info{version=\"");
+            escape(series, version.version);
+            series.append('"');
+            if (version.gitCommit.isPresent())
+            {
+                series.append(",commit=\"");
+                escape(series, version.gitCommit.get());
+                series.append('"');
+            }
+            versionSeries = series.append("} 1\n").toString();
+        }
+        catch (RuntimeException ex)
+        {
+            LOGGER.debug("Could not read the webapp version; it won't be exposed", ex);
+        }
+    }
+
+    @Override
+    protected void doGet(final HttpServletRequest req, final HttpServletResponse resp)
+        throws ServletException, IOException
+    {
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType(CONTENT_TYPE);
+
+        Writer out = resp.getWriter();
+        char[] buffer = new char[32];
+        long[] quantiles = new long[PERCENTILES.length];
+
+        if (versionSeries != null)
+        {
+            out.write("# TYPE abiquo_webapp_info gauge\n");
+            out.write(versionSeries);
+        }
+
+        writeJvm(out, buffer);
+
+        for (Family family : families())
+        {
+            out.write("# TYPE ");
+            out.write(family.name);
+            out.write(' ');
+            out.write(family.type);
+            out.write('\n');
+
+            // All the series of a family have the same type
+            for (Series series : family.series)
+            {
+                if (series.metric instanceof Histogram)
+                {
+                    writeSummary(out, buffer, quantiles, family.name, series.labels,
+                        series.openLabels, (Histogram) series.metric);
+                }
+                else if (series.metric instanceof Counter)
+                {
+                    writeSample(out, buffer, family.name, series.labels,
+                        ((Counter) series.metric).get());
+                }
+                else if (series.metric instanceof Gauge)
+                {
+                    writeSample(out, buffer, family.name, series.labels,
+                        ((Gauge) series.metric).get());
+                }
+            }
+        }
+
+        out.flush();
+    }
+
+    private static void writeSummary(final Writer out, final char[] buffer,
+        final long[] quantiles, final String name, final String labels, final String openLabels,
+        final Histogram histogram) throws IOException
+    {
+        long count = histogram.valuesAtPercentiles(PERCENTILES, quantiles);
+        for (int i = 0; i < PERCENTILES.length; i++)
+        {
+            out.write(name);
+            out.write(openLabels);
+            out.write(QUANTILE_LABELS[i]);
+            out.write(' ');
+            writeSeconds(out, buffer, quantiles[i]);
+            out.write('\n');
+        }
+
+        out.write(name);
+        out.write("_sum");
+        out.write(labels);
+        out.write(' ');
+        writeSeconds(out, buffer, histogram.getSum());
+        out.write('\n');
+
+        out.write(name);
+        out.write("_count");
+        writeSample(out, buffer, "", labels, count);
+    }
+
+    private static void writeJvm(final Writer out, final char[] buffer) throws IOException
+    {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+
+        out.write("# TYPE jvm_memory_bytes_used gauge\n");
+        writeSample(out, buffer, "jvm_memory_bytes_used", "{area=\"heap\"}", heap.getUsed());
+        writeSample(out, buffer, "jvm_memory_bytes_used", "{area=\"nonheap\"}",
+            nonHeap.getUsed());
+        out.write("# TYPE jvm_memory_bytes_committed gauge\n");
+        writeSample(out, buffer, "jvm_memory_bytes_committed", "{area=\"heap\"}",
+            heap.getCommitted());
+        writeSample(out, buffer, "jvm_memory_bytes_committed", "{area=\"nonheap\"}",
+            nonHeap.getCommitted());
+        out.write("# TYPE jvm_memory_bytes_max gauge\n");
+        writeSample(out, buffer, "jvm_memory_bytes_max", "{area=\"heap\"}", heap.getMax());
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        out.write("# TYPE jvm_threads_current gauge\n");
+        writeSample(out, buffer, "jvm_threads_current", "", threads.getThreadCount());
+        out.write("# TYPE jvm_threads_daemon gauge\n");
+        writeSample(out, buffer, "jvm_threads_daemon", "", threads.getDaemonThreadCount());
+
+        out.write("# TYPE jvm_classes_loaded gauge\n");
+        writeSample(out, buffer, "jvm_classes_loaded", "",
+            ManagementFactory.getClassLoadingMXBean().getLoadedClassCount());
+
+        out.write("# TYPE jvm_gc_collection_seconds summary\n");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            String labels = "{gc=\"" + gc.getName() + "\"}";
+            writeSample(out, buffer, "jvm_gc_collection_seconds_count", labels,
+                gc.getCollectionCount());
+            out.write("jvm_gc_collection_seconds_sum");
+            out.write(labels);
+            out.write(' ');
+            writeSeconds(out, buffer, gc.getCollectionTime() * 1000000L);
+            out.write('\n');
+        }
+
+        out.write("# TYPE process_uptime_seconds gauge\n");
+        out.write("process_uptime_seconds ");
+        writeSeconds(out, buffer, ManagementFactory.getRuntimeMXBean().getUptime() * 1000000L);
+        out.write('\n');
+    }
+
+    private static void writeSample(final Writer out, final char[] buffer, final String name,
+        final String labels, final long value) throws IOException
+    {
+        out.write(name);
+        out.write(labels);
+        out.write(' ');
+        writeLong(out, buffer, value);
+        out.write('\n');
+    }
+
+    /**
+     * Writes the decimal representation of the value without creating a String.
+     */
+    private static void writeLong(final Writer out, final char[] buffer, final long value)
+        throws IOException
+    {
+        if (value == Long.MIN_VALUE)
+        {
+            out.write(Long.toString(value));
+            return;
+        }
+
+        long v = Math.abs(value);
+        int pos = buffer.length;
+        do
+        {
+            buffer[--pos] = (char) ('0' + v % 10);
+            v /= 10;
+        }
+        while (v > 0);
+
+        if (value < 0)
+        {
+            buffer[--pos] = '-';
+        }
+        out.write(buffer, pos, buffer.length - pos);
+    }
+
+    /**
+     * Writes the given nanoseconds as seconds, with nanosecond precision.
+     */
+    private static void writeSeconds(final Writer out, final char[] buffer, final long nanos)
+        throws IOException
+    {
+        writeLong(out, buffer, nanos / 1000000000L);
+
+        long fraction = Math.abs(nanos % 1000000000L);
+        if (fraction != 0)
+        {
+            int end = buffer.length;
+            int pos = end - 9;
+            for (int i = end - 1; i >= pos; i--)
+            {
+                buffer[i] = (char) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            while (buffer[end - 1] == '0')
+            {
+                end--;
+            }
+            out.write('.');
+            out.write(buffer, pos, end - pos);
+        }
+    }
+
+    private List<Family> families()
+    {
+        int size = registry.getHistograms().size() + registry.getCounters().size()
+            + registry.getGauges().size();
+        List<Family> current = families;
+        if (current == null || size != familiesSize)
+        {
+            Map<String, Family> grouped = new TreeMap<>();
+            registry.getHistograms().forEach((key, histogram) -> group(grouped,
+                sanitize(key.getName()) + "_seconds", "summary", key, histogram));
+            registry.getCounters().forEach((key, counter) -> group(grouped,
+                sanitize(key.getName()) + "_total", "counter", key, counter));
+            registry.getGauges().forEach(
+                (key, gauge) -> group(grouped, sanitize(key.getName()), "gauge", key, gauge));
+
+            current = new ArrayList<>(grouped.values());
+            families = current;
+            familiesSize = size;
+        }
+        return current;
+    }
+
+    /**
+     * Adds the series to its family, unless the family has a different type.
+     */
+    private static void group(final Map<String, Family> grouped, final String name,
+        final String type, final MetricKey key, final Object metric)
+    {
+        Family family = grouped.computeIfAbsent(name, n -> new Family(n, type));
+        if (family.type.equals(type))
+        {
+            family.series.add(new Series(key, metric));
+        }
+        else
+        {
+            LOGGER.warn("Not exposing the {} {} because {} is already a {}", type, key, name,
+                family.type);
+        }
+    }
+
+    /**
+     * Replaces the characters not allowed in Prometheus metric and label names.
+     */
+    private static String sanitize(final String name)
+    {
+        StringBuilder sanitized = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++)
+        {
+            char c = name.charAt(i);
+            boolean valid = c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_' || c == ':'
+                || i > 0 && c >= '0' && c <= '9';
+            sanitized.append(valid ? c : '_');
+        }
+        return sanitized.toString();
+    }
+
+    private static void escape(final StringBuilder out, final String value)
+    {
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"')
+            {
+                out.append('\\').append(c);
+            }
+            else if (c == '\n')
+            {
+                out.append("\\n");
+            }
+            else
+            {
+                out.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.web.listener;
+
+import static com.abiquo.commons.web.listener.ZookeeperTestSupport.contextEvent;
+import static com.abiquo.commons.web.listener.ZookeeperTestSupport.expireSession;
+import static com.abiquo.commons.web.listener.ZookeeperTestSupport.restart;
+import static java.lang.Thread.currentThread;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.servlet.ServletContextEvent;
+
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Leadership of {@link LeadElectionContextListener} when the connection to ZooKeeper is suspended
+ * or the session expires (reported by Curator as LOST), and its handover to another node.
+ */
+public class LeadElectionContextListenerTest
+{
+    private static final long EVENT_TIMEOUT_SECONDS = 15;
+
+    private static TestingServer server;
+
+    private final List<Participant> participants = new ArrayList<>();
+
+    @BeforeClass
+    public static void startServer() throws Exception
+    {
+        server = ZookeeperTestSupport.startServer();
+    }
+
+    @AfterClass
+    public static void stopServer() throws Exception
+    {
+        server.close();
+    }
+
+    @After
+    public void leaveElection()
+    {
+        participants.forEach(Participant::leave);
+    }
+
+    @Test
+    public void suspensionGivesUpLeadershipByDefault() throws Exception
+    {
+        Participant leader = join("/suspension-default", false);
+        assertEquals("taken", leader.nextEvent());
+
+        restart(server);
+
+        assertEquals("suspended", leader.nextEvent());
+        assertEquals("taken", leader.nextEvent());
+    }
+
+    @Test
+    public void suspensionPausesAndResumesLeadership() throws Exception
+    {
+        Participant leader = join("/suspension-resume", true);
+        assertEquals("taken", leader.nextEvent());
+
+        restart(server);
+
+        assertEquals("paused", leader.nextEvent());
+        assertEquals("resumed", leader.nextEvent());
+        assertNull(leader.events.poll(1, SECONDS));
+    }
+
+    @Test
+    public void sessionExpiryGivesUpLeadershipByDefault() throws Exception
+    {
+        Participant leader = join("/expiry-default", false);
+        assertEquals("taken", leader.nextEvent());
+
+        expireSession();
+
+        assertEquals("suspended", leader.nextEvent());
+        assertEquals("taken", leader.nextEvent());
+    }
+
+    @Test
+    public void sessionExpiryGivesUpPausedLeadership() throws Exception
+    {
+        Participant leader = join("/expiry-resume", true);
+        assertEquals("taken", leader.nextEvent());
+
+        expireSession();
+
+        // The connection may be suspended before the expiration is notified
+        String event = leader.nextEvent();
+        if ("paused".equals(event))
+        {
+            event = leader.nextEvent();
+        }
+        assertEquals("suspended", event);
+        assertEquals("taken", leader.nextEvent());
+    }
+
+    @Test
+    public void followerTakesLeadershipWhenLeaderSessionExpires() throws Exception
+    {
+        Participant leader = join("/expiry-failover", true);
+        assertEquals("taken", leader.nextEvent());
+        // The follower has its own session, as another node
+        Participant follower = new Participant("/expiry-failover", true);
+        follower.ownClient = true;
+        follower.contextInitialized(contextEvent("/expiry-failover"));
+        participants.add(follower);
+        awaitParticipants(follower, 2);
+
+        long start = System.nanoTime();
+        expireSession();
+
+        assertEquals("taken", follower.nextEvent());
+        long failoverMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("Failover took " + failoverMillis + " ms", failoverMillis < 5000);
+
+        String event = leader.nextEvent();
+        if ("paused".equals(event))
+        {
+            event = leader.nextEvent();
+        }
+        assertEquals("suspended", event);
+    }
+
+    @Test
+    public void slowStandbyDoesNotDelayTheHandover() throws Exception
+    {
+        Participant first = join("/handover", false);
+        assertEquals("taken", first.nextEvent());
+        Participant second = join("/handover", false);
+        assertTrue(second.nextStandby().startsWith("leader-standby"));
+        awaitParticipants(first, 2);
+
+        first.standbyMillis = 5000;
+        long start = System.nanoTime();
+        first.leaderSelector.interruptLeadership();
+
+        assertEquals("suspended", first.nextEvent());
+        assertEquals("taken", second.nextEvent());
+        long handoverMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("Handover took " + handoverMillis + " ms", handoverMillis < 2000);
+
+        // The standby of the former leader still runs, out of the leadership thread
+        assertTrue(first.nextStandby().startsWith("leader-standby"));
+    }
+
+    @Test
+    public void hungStandbyIsCancelledWhenTakingTheLeadership() throws Exception
+    {
+        Participant leader = new Participant("/standby-timeout", false);
+        leader.standbyMillis = Long.MAX_VALUE;
+        leader.standbyTimeoutMs = 500;
+        long start = System.nanoTime();
+        leader.contextInitialized(contextEvent("/standby-timeout"));
+        participants.add(leader);
+
+        assertEquals("taken", leader.nextEvent());
+        long takeMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("Leadership taken in " + takeMillis + " ms", takeMillis < 5000);
+        assertEquals("interrupted", leader.nextStandby());
+    }
+
+    private Participant join(final String contextPath, final boolean resumeOnReconnect)
+    {
+        Participant participant = new Participant(contextPath, resumeOnReconnect);
+        participant.contextInitialized(contextEvent(contextPath));
+        participants.add(participant);
+        return participant;
+    }
+
+    private static void awaitParticipants(final Participant participant, final int count)
+        throws Exception
+    {
+        long deadline = System.nanoTime() + SECONDS.toNanos(EVENT_TIMEOUT_SECONDS);
+        while (participant.leaderSelector.getParticipants().size() < count)
+        {
+            assertTrue("Missing participants", System.nanoTime() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    private static class Participant extends LeadElectionContextListener
+    {
+        final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+        /** Threads where {@link #onStandby()} completed. */
+        final BlockingQueue<String> standbys = new LinkedBlockingQueue<>();
+
+        volatile long standbyMillis;
+
+        volatile long standbyTimeoutMs = 10000;
+
+        /** Whether to join with a session of its own instead of the shared one. */
+        volatile boolean ownClient;
+
+        private final String contextPath;
+
+        private final boolean resumeOnReconnect;
+
+        Participant(final String contextPath, final boolean resumeOnReconnect)
+        {
+            this.contextPath = contextPath;
+            this.resumeOnReconnect = resumeOnReconnect;
+        }
+
+        String nextEvent() throws InterruptedException
+        {
+            return events.poll(EVENT_TIMEOUT_SECONDS, SECONDS);
+        }
+
+        String nextStandby() throws InterruptedException
+        {
+            return standbys.poll(EVENT_TIMEOUT_SECONDS, SECONDS);
+        }
+
+        void leave()
+        {
+            contextDestroyed(contextEvent(contextPath));
+        }
+
+        @Override
+        protected boolean resumeOnReconnect()
+        {
+            return resumeOnReconnect;
+        }
+
+        @Override
+        protected CuratorClientRegistry.Lease acquireClient()
+        {
+            return ownClient ? ZookeeperTestSupport.acquireOwnClient() : super.acquireClient();
+        }
+
+        @Override
+        protected long standbyTimeoutMs()
+        {
+            return standbyTimeoutMs;
+        }
+
+        @Override
+        public void initializeContext(final ServletContextEvent sce)
+        {
+            // Nothing to initialize
+        }
+
+        @Override
+        public void onStart(final ServletContextEvent sce)
+        {
+            events.add("started");
+        }
+
+        @Override
+        public void onShutdown(final ServletContextEvent sce)
+        {
+            // Nothing to release
+        }
+
+        @Override
+        protected void onStandby() throws Exception
+        {
+            try
+            {
+                Thread.sleep(standbyMillis);
+            }
+            catch (InterruptedException e)
+            {
+                standbys.add("interrupted");
+                throw e;
+            }
+            standbys.add(currentThread().getName());
+        }
+
+        @Override
+        public void onLeadershipTaken()
+        {
+            events.add("taken");
+        }
+
+        @Override
+        public void onLeadershipSuspended()
+        {
+            events.add("suspended");
+        }
+
+        @Override
+        protected void onLeadershipPaused()
+        {
+            events.add("paused");
+        }
+
+        @Override
+        protected void onLeadershipResumed()
+        {
+            events.add("resumed");
+        }
+    }
+}
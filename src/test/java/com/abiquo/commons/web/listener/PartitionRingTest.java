@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.web.listener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * Assignment of partitions by {@link PartitionRing}.
+ */
+public class PartitionRingTest
+{
+    private static final int PARTITIONS = 64;
+
+    private static final int VIRTUAL_NODES = 128;
+
+    @Test
+    public void emptyRingOwnsNothing()
+    {
+        PartitionRing ring = new PartitionRing(Collections.<String> emptyList(), VIRTUAL_NODES);
+        assertTrue(ring.partitionsOf("a", PARTITIONS).isEmpty());
+    }
+
+    @Test
+    public void singleMemberOwnsAllPartitions()
+    {
+        PartitionRing ring = new PartitionRing(Arrays.asList("a"), VIRTUAL_NODES);
+        assertEquals(PARTITIONS, ring.partitionsOf("a", PARTITIONS).size());
+        assertTrue(ring.partitionsOf("b", PARTITIONS).isEmpty());
+    }
+
+    @Test
+    public void eachPartitionHasOneOwner()
+    {
+        List<String> members = members(5);
+        Map<String, Set<Integer>> owned = assign(members);
+
+        Set<Integer> all = new TreeSet<>();
+        int total = 0;
+        for (Set<Integer> partitions : owned.values())
+        {
+            all.addAll(partitions);
+            total += partitions.size();
+        }
+        assertEquals(PARTITIONS, all.size());
+        assertEquals(PARTITIONS, total);
+    }
+
+    @Test
+    public void partitionsAreSpreadAcrossMembers()
+    {
+        List<String> members = members(4);
+        for (Map.Entry<String, Set<Integer>> entry : assign(members).entrySet())
+        {
+            int size = entry.getValue().size();
+            // A fair share is 16; the virtual nodes keep it within a reasonable margin
+            assertTrue(entry.getKey() + " owns " + size, size >= 6 && size <= 28);
+        }
+    }
+
+    @Test
+    public void assignmentDoesNotDependOnTheOrderOfMembers()
+    {
+        List<String> members = members(6);
+        Map<String, Set<Integer>> owned = assign(members);
+
+        List<String> reversed = new ArrayList<>(members);
+        Collections.reverse(reversed);
+        assertEquals(owned, assign(reversed));
+    }
+
+    @Test
+    public void joiningMemberOnlyTakesPartitions()
+    {
+        List<String> members = members(4);
+        Map<String, Set<Integer>> before = assign(members);
+
+        List<String> joined = new ArrayList<>(members);
+        joined.add("joining");
+        Map<String, Set<Integer>> after = assign(joined);
+
+        assertTrue(after.get("joining").size() > 0);
+        for (String member : members)
+        {
+            // Existing members only lose partitions, and only to the new one
+            assertTrue(before.get(member).containsAll(after.get(member)));
+            Set<Integer> lost = new TreeSet<>(before.get(member));
+            lost.removeAll(after.get(member));
+            assertTrue(after.get("joining").containsAll(lost));
+        }
+    }
+
+    @Test
+    public void leavingMemberOnlyReleasesItsPartitions()
+    {
+        List<String> members = members(5);
+        Map<String, Set<Integer>> before = assign(members);
+
+        List<String> remaining = new ArrayList<>(members);
+        String leaving = remaining.remove(2);
+        Map<String, Set<Integer>> after = assign(remaining);
+
+        Set<Integer> moved = new TreeSet<>();
+        for (String member : remaining)
+        {
+            // Remaining members keep their partitions and only take the released ones
+            assertTrue(after.get(member).containsAll(before.get(member)));
+            Set<Integer> taken = new TreeSet<>(after.get(member));
+            taken.removeAll(before.get(member));
+            moved.addAll(taken);
+        }
+        assertEquals(before.get(leaving), moved);
+    }
+
+    private static List<String> members(final int count)
+    {
+        List<String> members = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+        {
+            members.add("member-" + i);
+        }
+        return members;
+    }
+
+    private static Map<String, Set<Integer>> assign(final List<String> members)
+    {
+        PartitionRing ring = new PartitionRing(members, VIRTUAL_NODES);
+        Map<String, Set<Integer>> owned = new HashMap<>();
+        for (String member : members)
+        {
+            owned.put(member, ring.partitionsOf(member, PARTITIONS));
+        }
+        return owned;
+    }
+}
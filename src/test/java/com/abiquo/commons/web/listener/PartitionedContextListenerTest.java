@@ -0,0 +1,249 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.web.listener;
+
+import static com.abiquo.commons.web.listener.ZookeeperTestSupport.contextEvent;
+import static com.abiquo.commons.web.listener.ZookeeperTestSupport.expireSession;
+import static com.abiquo.commons.web.listener.ZookeeperTestSupport.restart;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContextEvent;
+
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Assignment of partitions among several members of {@link PartitionedContextListener} as they
+ * join and leave the group, and when the connection to ZooKeeper is lost.
+ */
+public class PartitionedContextListenerTest
+{
+    private static final int PARTITIONS = 64;
+
+    private static final long TIMEOUT_SECONDS = 15;
+
+    private static TestingServer server;
+
+    /** Orders the notifications of all the members. */
+    private static final AtomicInteger CLOCK = new AtomicInteger();
+
+    private final List<Member> members = new ArrayList<>();
+
+    @BeforeClass
+    public static void startServer() throws Exception
+    {
+        server = ZookeeperTestSupport.startServer();
+    }
+
+    @AfterClass
+    public static void stopServer() throws Exception
+    {
+        server.close();
+    }
+
+    @After
+    public void leaveGroup()
+    {
+        members.forEach(Member::leave);
+    }
+
+    @Test
+    public void membersSplitAllThePartitions() throws Exception
+    {
+        Member first = join("/split");
+        awaitBalanced(first);
+
+        Member second = join("/split");
+        Member third = join("/split");
+        awaitBalanced(first, second, third);
+
+        assertTrue(first.getOwnedPartitions().size() < PARTITIONS);
+    }
+
+    @Test
+    public void leavingMemberReleasesItsPartitionsToTheOthers() throws Exception
+    {
+        Member first = join("/leave");
+        Member second = join("/leave");
+        Member third = join("/leave");
+        awaitBalanced(first, second, third);
+        Set<Integer> firstBefore = first.getOwnedPartitions();
+        Set<Integer> secondBefore = second.getOwnedPartitions();
+
+        third.leave();
+        members.remove(third);
+        awaitBalanced(first, second);
+
+        // Only the partitions of the member that left move
+        assertTrue(first.getOwnedPartitions().containsAll(firstBefore));
+        assertTrue(second.getOwnedPartitions().containsAll(secondBefore));
+        // and they are revoked before the others take them
+        assertTrue(Math.max(first.assignedAt, second.assignedAt) > third.revokedAt);
+        if (first.getOwnedPartitions().size() > firstBefore.size())
+        {
+            assertTrue(first.assignedAt > third.revokedAt);
+        }
+        if (second.getOwnedPartitions().size() > secondBefore.size())
+        {
+            assertTrue(second.assignedAt > third.revokedAt);
+        }
+    }
+
+    @Test
+    public void partitionsAreReassignedAfterReconnection() throws Exception
+    {
+        Member first = join("/reconnect");
+        Member second = join("/reconnect");
+        awaitBalanced(first, second);
+        int firstRevocations = first.revocations.get();
+        int secondRevocations = second.revocations.get();
+
+        restart(server);
+
+        awaitRevoked(first, firstRevocations);
+        awaitRevoked(second, secondRevocations);
+        awaitBalanced(first, second);
+    }
+
+    @Test
+    public void partitionsAreReassignedAfterSessionExpiry() throws Exception
+    {
+        Member first = join("/expiry");
+        Member second = join("/expiry");
+        awaitBalanced(first, second);
+        int firstRevocations = first.revocations.get();
+        int secondRevocations = second.revocations.get();
+
+        // Both share the client of this JVM, so both sessions expire
+        expireSession();
+
+        awaitRevoked(first, firstRevocations);
+        awaitRevoked(second, secondRevocations);
+        awaitBalanced(first, second);
+    }
+
+    private Member join(final String contextPath)
+    {
+        Member member = new Member(contextPath);
+        member.contextInitialized(contextEvent(contextPath));
+        members.add(member);
+        return member;
+    }
+
+    /**
+     * Waits until each partition is owned by exactly one of the given members.
+     */
+    private static void awaitBalanced(final Member... group) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (System.nanoTime() < deadline)
+        {
+            Set<Integer> all = new TreeSet<>();
+            int total = 0;
+            boolean allOwnSome = true;
+            for (Member member : group)
+            {
+                Set<Integer> owned = member.getOwnedPartitions();
+                all.addAll(owned);
+                total += owned.size();
+                allOwnSome &= !owned.isEmpty();
+            }
+            if (allOwnSome && all.size() == PARTITIONS && total == PARTITIONS)
+            {
+                return;
+            }
+            Thread.sleep(50);
+        }
+        fail("Partitions not balanced across " + group.length + " members");
+    }
+
+    /**
+     * Waits until the member revokes all its partitions.
+     */
+    private static void awaitRevoked(final Member member, final int previousRevocations)
+        throws InterruptedException
+    {
+        long deadline = System.nanoTime() + SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (System.nanoTime() < deadline)
+        {
+            if (member.revocations.get() > previousRevocations)
+            {
+                return;
+            }
+            Thread.sleep(50);
+        }
+        fail("Partitions not revoked");
+    }
+
+    private static class Member extends PartitionedContextListener
+    {
+        /** Times all the partitions have been revoked. */
+        final AtomicInteger revocations = new AtomicInteger();
+
+        /** {@link #CLOCK} of the last notifications. */
+        volatile int assignedAt;
+
+        volatile int revokedAt;
+
+        private final String contextPath;
+
+        Member(final String contextPath)
+        {
+            this.contextPath = contextPath;
+        }
+
+        void leave()
+        {
+            contextDestroyed(contextEvent(contextPath));
+        }
+
+        @Override
+        protected int getPartitionCount()
+        {
+            return PARTITIONS;
+        }
+
+        @Override
+        public void initializeContext(final ServletContextEvent sce)
+        {
+            // Nothing to initialize
+        }
+
+        @Override
+        public void onShutdown(final ServletContextEvent sce)
+        {
+            // Nothing to release
+        }
+
+        @Override
+        public void onPartitionsAssigned(final Set<Integer> partitions)
+        {
+            assignedAt = CLOCK.incrementAndGet();
+        }
+
+        @Override
+        public void onPartitionsRevoked(final Set<Integer> partitions)
+        {
+            revokedAt = CLOCK.incrementAndGet();
+            if (getOwnedPartitions().isEmpty())
+            {
+                revocations.incrementAndGet();
+            }
+        }
+    }
+}
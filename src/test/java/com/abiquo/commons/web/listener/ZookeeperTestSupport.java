@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2008 - Abiquo Holdings S.L. All rights reserved.
+ *
+ * Please see /opt/abiquo/tomcat/webapps/legal/ on Abiquo server
+ * or contact contact@abiquo.com for licensing information.
+ */
+package com.abiquo.commons.web.listener;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.test.KillSession;
+import org.apache.curator.test.TestingServer;
+
+import com.abiquo.commons.web.ClusterConstants;
+
+/**
+ * In-process ZooKeeper server for the tests of the cluster aware listeners.
+ * <p>
+ * {@link ZookeeperConfig} reads the connection settings once, so all the tests connect to the same
+ * port and each test class starts its own server on it.
+ */
+final class ZookeeperTestSupport
+{
+    static final int PORT = freePort();
+
+    static final int SESSION_TIMEOUT_MS = 4000;
+
+    static
+    {
+        System.setProperty(ClusterConstants.ZK_SERVER, "127.0.0.1:" + PORT);
+        System.setProperty("abiquo.api.zk.sessionTimeoutMs", String.valueOf(SESSION_TIMEOUT_MS));
+        System.setProperty("abiquo.api.zk.connectionTimeoutMs", "4000");
+        System.setProperty("abiquo.api.zk.connectionRetries", "3");
+        System.setProperty("abiquo.api.zk.sleepMsBetweenRetries", "100");
+    }
+
+    private ZookeeperTestSupport()
+    {
+    }
+
+    static TestingServer startServer() throws Exception
+    {
+        return new TestingServer(PORT);
+    }
+
+    /**
+     * Restarts the server, so the connected clients get suspended and reconnected with the same
+     * session.
+     */
+    static void restart(final TestingServer server) throws Exception
+    {
+        server.stop();
+        Thread.sleep(500);
+        server.restart();
+    }
+
+    /**
+     * Expires the session of the shared client.
+     */
+    static void expireSession() throws Exception
+    {
+        try (CuratorClientRegistry.Lease lease = ZookeeperConfig.acquireClient())
+        {
+            CuratorFramework client = lease.getClient();
+            KillSession.kill(client.getZookeeperClient().getZooKeeper(),
+                ZookeeperConfig.ZK_SERVER);
+        }
+    }
+
+    /**
+     * Gets a client with its own session, as the one of another node. The server is reached
+     * through another host name, so it is not shared with the {@link #expireSession() expired}
+     * client.
+     */
+    static CuratorClientRegistry.Lease acquireOwnClient()
+    {
+        return CuratorClientRegistry.acquire("localhost:" + PORT, SESSION_TIMEOUT_MS,
+            ZookeeperConfig.ZK_CONNECTION_TIMEOUT_MS, ZookeeperConfig.ZK_RETRIES,
+            ZookeeperConfig.ZK_SLEEP_MS_BETWEEN_RETRIES);
+    }
+
+    /**
+     * Gets the event of a servlet context with the given context path.
+     */
+    static ServletContextEvent contextEvent(final String contextPath)
+    {
+        ServletContext context = (ServletContext) Proxy.newProxyInstance(
+            ZookeeperTestSupport.class.getClassLoader(), new Class< ? >[] {ServletContext.class},
+            (proxy, method, args) -> "getContextPath".equals(method.getName()) ? contextPath
+                : null);
+        return new ServletContextEvent(context);
+    }
+
+    private static int freePort()
+    {
+        try (ServerSocket socket = new ServerSocket(0))
+        {
+            return socket.getLocalPort();
+        }
+        catch (IOException ex)
+        {
+            throw new IllegalStateException("Could not find a free port", ex);
+        }
+    }
+}